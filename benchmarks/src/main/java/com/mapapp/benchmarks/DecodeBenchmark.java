@@ -0,0 +1,55 @@
+package com.mapapp.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mapapp.tools.TileGenerator;
+
+/**
+ * PNG decode of a tile by its size, what a cache miss costs on top of the
+ * query. The JVM has no WebP decoder, BitmapFactory decodes of PNG and WebP
+ * are measured on the device by TileDecodeBenchmark of the app's debug build.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark
+{
+	// Noise rows: about 1 KB (sea), 13 KB (median tile) and 50 KB
+	@Param({ "0", "16", "64" })
+	int detail;
+
+	byte[] png;
+
+	@Setup
+	public void setup()
+	{
+		ImageIO.setUseCache(false);
+		png = TileGenerator.png(new Random(1), detail);
+	}
+
+	@Benchmark
+	public BufferedImage decodePng() throws Exception
+	{
+		return ImageIO.read(new ByteArrayInputStream(png));
+	}
+}
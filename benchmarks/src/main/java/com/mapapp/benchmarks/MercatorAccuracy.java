@@ -0,0 +1,82 @@
+package com.mapapp.benchmarks;
+
+import java.util.Random;
+
+import com.mapapp.core.Mercator;
+import com.mapapp.core.TilesManager;
+
+/**
+ * Checks Mercator.FAST against EXACT, run with gradle :benchmarks:mercatorAccuracy.
+ *
+ * Properties checked on random latitudes and ratios plus a dense sweep of
+ * the whole range and its ends: the error in pixels at zoom 18 stays below
+ * the bounds documented in Mercator, and the fast projection keeps the
+ * order of the points (ratio decreases as latitude grows).
+ * Prints the maximum error of every zoom level, exits with 1 on failure.
+ */
+public class MercatorAccuracy
+{
+	final static int ZOOM = 18;
+	final static double MAP_SIZE = 256.0 * (1 << ZOOM);
+
+	// The bounds documented in Mercator
+	final static double MAX_FORWARD_ERROR = 0.015, MAX_INVERSE_ERROR = 0.00001;
+
+	public static void main(String[] args)
+	{
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 1);
+
+		double min = TilesManager.MinLatitude, max = TilesManager.MaxLatitude;
+		double forward = 0, inverse = 0;
+		double worstLatitude = 0, worstRatio = 0;
+		boolean ordered = true;
+		double previous = Double.MAX_VALUE;
+
+		for (int i = 0; i <= samples; i++)
+		{
+			// Half swept in order, which also checks the order, half random
+			boolean sweep = i % 2 == 0;
+			double latitude = sweep ? min + (max - min) * i / samples : min + (max - min) * random.nextDouble();
+			double ratio = sweep ? (double) i / samples : random.nextDouble();
+
+			double fastRatio = Mercator.FAST.ratioY(latitude);
+			double e = Math.abs(fastRatio - Mercator.EXACT.ratioY(latitude)) * MAP_SIZE;
+			if (e > forward)
+			{
+				forward = e;
+				worstLatitude = latitude;
+			}
+
+			if (sweep)
+			{
+				if (fastRatio > previous) ordered = false;
+				previous = fastRatio;
+			}
+
+			// Error of the latitude found, as a distance in pixels
+			e = Math.abs(Mercator.EXACT.ratioY(Mercator.FAST.latitude(ratio)) - ratio) * MAP_SIZE;
+			if (e > inverse)
+			{
+				inverse = e;
+				worstRatio = ratio;
+			}
+		}
+
+		System.out.printf("%d samples, worst latitude to pixel at %.6f, worst pixel to latitude at ratio %.6f%n", samples, worstLatitude,
+				worstRatio);
+		System.out.println("zoom  latitude to pixel  pixel to latitude (max px)");
+		for (int zoom = 0; zoom <= ZOOM; zoom++)
+		{
+			double scale = 1.0 / (1 << (ZOOM - zoom));
+			System.out.printf("%4d  %17.7f  %17.7f%n", zoom, forward * scale, inverse * scale);
+		}
+
+		boolean ok = ordered && forward <= MAX_FORWARD_ERROR && inverse <= MAX_INVERSE_ERROR;
+		if (!ordered) System.out.println("FAILED: the fast projection doesn't keep the order of latitudes");
+		if (forward > MAX_FORWARD_ERROR) System.out.println("FAILED: latitude to pixel error above " + MAX_FORWARD_ERROR);
+		if (inverse > MAX_INVERSE_ERROR) System.out.println("FAILED: pixel to latitude error above " + MAX_INVERSE_ERROR);
+		System.out.println(ok ? "OK" : "FAILED");
+		if (!ok) System.exit(1);
+	}
+}
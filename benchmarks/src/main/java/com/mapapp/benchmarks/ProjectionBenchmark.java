@@ -0,0 +1,157 @@
+package com.mapapp.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mapapp.core.Mercator;
+import com.mapapp.core.Point;
+import com.mapapp.core.PointD;
+import com.mapapp.core.TilesManager;
+
+/**
+ * The projection MapView runs on every touch move and every frame: the
+ * seek location to pixels and back, and the visible tiles.
+ * Coordinates cycle through a table so the JIT can't fold them.
+ * Run with -prof gc to see the allocating variants next to the ones
+ * writing into holders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark
+{
+	final static int POINTS = 1024;
+
+	// A phone screen
+	TilesManager manager = new TilesManager(256, 1080, 1920);
+
+	double[] longitudes = new double[POINTS], latitudes = new double[POINTS];
+	int[] pixelsX = new int[POINTS], pixelsY = new int[POINTS];
+	int i;
+
+	Point point = new Point();
+	PointD pointD = new PointD();
+	int[] batchX = new int[POINTS], batchY = new int[POINTS];
+	double[] batchLongitudes = new double[POINTS], batchLatitudes = new double[POINTS];
+
+	@Setup
+	public void setup()
+	{
+		Random r = new Random(1);
+		manager.setZoom(14);
+		for (int n = 0; n < POINTS; n++)
+		{
+			longitudes[n] = r.nextDouble() * 360 - 180;
+			latitudes[n] = r.nextDouble() * 170 - 85;
+			Point p = manager.lonLatToPixelXY(longitudes[n], latitudes[n]);
+			pixelsX[n] = p.x;
+			pixelsY[n] = p.y;
+		}
+	}
+
+	int next()
+	{
+		return i = (i + 1) & (POINTS - 1);
+	}
+
+	@Benchmark
+	public PointD calcRatio()
+	{
+		int n = next();
+		return TilesManager.calcRatio(longitudes[n], latitudes[n]);
+	}
+
+	@Benchmark
+	public PointD calcRatioInto()
+	{
+		int n = next();
+		return TilesManager.calcRatio(longitudes[n], latitudes[n], pointD);
+	}
+
+	@Benchmark
+	public Point lonLatToPixelXY()
+	{
+		int n = next();
+		return manager.lonLatToPixelXY(longitudes[n], latitudes[n]);
+	}
+
+	@Benchmark
+	public Point lonLatToPixelXYInto()
+	{
+		int n = next();
+		return manager.lonLatToPixelXY(longitudes[n], latitudes[n], point);
+	}
+
+	@Benchmark
+	public long lonLatToPixelPacked()
+	{
+		int n = next();
+		return manager.lonLatToPixelPacked(longitudes[n], latitudes[n]);
+	}
+
+	// All the points at once, divide by POINTS for the cost of one
+	@Benchmark
+	public int[] lonLatToPixelXYBatch()
+	{
+		manager.lonLatToPixelXY(longitudes, latitudes, batchX, batchY, POINTS);
+		return batchX;
+	}
+
+	@Benchmark
+	public int[] lonLatToPixelXYBatchFast()
+	{
+		manager.lonLatToPixelXY(longitudes, latitudes, batchX, batchY, POINTS, Mercator.FAST);
+		return batchX;
+	}
+
+	@Benchmark
+	public double[] pixelXYToLonLatBatch()
+	{
+		manager.pixelXYToLonLat(pixelsX, pixelsY, batchLongitudes, batchLatitudes, POINTS, Mercator.EXACT);
+		return batchLatitudes;
+	}
+
+	@Benchmark
+	public double[] pixelXYToLonLatBatchFast()
+	{
+		manager.pixelXYToLonLat(pixelsX, pixelsY, batchLongitudes, batchLatitudes, POINTS, Mercator.FAST);
+		return batchLatitudes;
+	}
+
+	@Benchmark
+	public PointD pixelXYToLonLat()
+	{
+		int n = next();
+		return manager.pixelXYToLonLat(pixelsX[n], pixelsY[n]);
+	}
+
+	@Benchmark
+	public PointD pixelXYToLonLatInto()
+	{
+		int n = next();
+		return manager.pixelXYToLonLat(pixelsX[n], pixelsY[n], pointD);
+	}
+
+	// setLocation is how MapView updates the visible region
+	@Benchmark
+	public Object updateVisibleRegion()
+	{
+		int n = next();
+		manager.setLocation(longitudes[n], latitudes[n]);
+		return manager.getVisibleRegion();
+	}
+}
@@ -0,0 +1,133 @@
+package com.mapapp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The tiles of TilesProvider under contention: renderers draw all of them
+ * while the downloads add one at a time.
+ * Snapshot is what TilesProvider does, an immutable TileSet copied on
+ * every change and published through a volatile field, drawn without a
+ * lock. Hashtable is how it was before, every draw holding the lock the
+ * writers take. TileSet itself is in the app (it holds Android bitmaps),
+ * Snapshot below does the same with plain objects.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileCacheBenchmark
+{
+	// Tiles of a screen and its surroundings
+	final static int TILES = 64;
+
+	// Same as TileSet: a key map and a flat array, never changed
+	static final class Snapshot
+	{
+		final HashMap<String, Object> tiles;
+		final Object[] list;
+
+		Snapshot(HashMap<String, Object> tiles)
+		{
+			this.tiles = tiles;
+			list = tiles.values().toArray();
+		}
+
+		Snapshot with(String key, Object tile)
+		{
+			HashMap<String, Object> copy = new HashMap<String, Object>(tiles);
+			copy.put(key, tile);
+			return new Snapshot(copy);
+		}
+	}
+
+	@Param({ "Snapshot", "Hashtable" })
+	String scheme;
+
+	String[] keys = new String[TILES];
+
+	volatile Snapshot snapshot;
+	final Object writeLock = new Object();
+
+	Hashtable<String, Object> table;
+	final Object tilesLock = new Object();
+
+	@Setup
+	public void setup()
+	{
+		HashMap<String, Object> tiles = new HashMap<String, Object>();
+		table = new Hashtable<String, Object>();
+		for (int n = 0; n < TILES; n++)
+		{
+			keys[n] = (n % 8) + ":" + (n / 8);
+			Object tile = new Object();
+			tiles.put(keys[n], tile);
+			table.put(keys[n], tile);
+		}
+		snapshot = new Snapshot(tiles);
+	}
+
+	// A frame drawing every tile
+	@Benchmark
+	@Group("tiles")
+	@GroupThreads(3)
+	public void draw(Blackhole bh)
+	{
+		if (scheme.equals("Snapshot"))
+		{
+			Snapshot s = snapshot;
+			for (int i = 0; i < s.list.length; i++)
+				bh.consume(s.list[i]);
+		}
+		else
+		{
+			synchronized (tilesLock)
+			{
+				for (Object tile : table.values())
+					bh.consume(tile);
+			}
+		}
+	}
+
+	// A download arriving
+	@Benchmark
+	@Group("tiles")
+	@GroupThreads(1)
+	public void add()
+	{
+		String key = keys[ThreadLocalRandom.current().nextInt(TILES)];
+		if (scheme.equals("Snapshot"))
+		{
+			synchronized (writeLock)
+			{
+				snapshot = snapshot.with(key, new Object());
+			}
+		}
+		else
+		{
+			synchronized (tilesLock)
+			{
+				table.put(key, new Object());
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.mapapp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileHash;
+import com.mapapp.tools.TileGenerator;
+
+/**
+ * Keys of the tiles: the "x:y" strings of the TilesProvider tables, the
+ * bundle keys, and the content hash deduplication of SQLiteTileStore
+ * (hash of an old layout tile, then lookup of the bitmap by hash).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileKeyBenchmark
+{
+	final static int TILES = 1024;
+
+	@State(Scope.Thread)
+	public static class Image
+	{
+		// Noise rows of the hashed image, 0 is a sea tile of about 1 KB, 16
+		// is a median tile of about 13 KB
+		@Param({ "0", "16" })
+		int detail;
+
+		byte[] png;
+
+		@Setup
+		public void setup()
+		{
+			png = TileGenerator.png(new Random(1), detail);
+		}
+	}
+
+	int[] xs = new int[TILES], ys = new int[TILES];
+	long[] keys = new long[TILES];
+	String[] hashes = new String[TILES];
+	HashMap<String, Object> bitmaps = new HashMap<String, Object>();
+	int i;
+
+	@Setup
+	public void setup()
+	{
+		Random r = new Random(1);
+		for (int n = 0; n < TILES; n++)
+		{
+			xs[n] = r.nextInt(1 << 14);
+			ys[n] = r.nextInt(1 << 14);
+			keys[n] = TileBundle.key(14, xs[n], ys[n]);
+
+			// A screen of tiles has a few distinct images
+			hashes[n] = TileHash.hash(new byte[] { (byte) r.nextInt(64) });
+			bitmaps.put(hashes[n], new Object());
+		}
+	}
+
+	int next()
+	{
+		return i = (i + 1) & (TILES - 1);
+	}
+
+	@Benchmark
+	public String stringKey()
+	{
+		int n = next();
+		return xs[n] + ":" + ys[n];
+	}
+
+	@Benchmark
+	public long bundleKey()
+	{
+		int n = next();
+		return TileBundle.key(14, xs[n], ys[n]);
+	}
+
+	@Benchmark
+	public int decodeBundleKey()
+	{
+		long key = keys[next()];
+		return TileBundle.x(key) ^ TileBundle.y(key);
+	}
+
+	@Benchmark
+	public String hashImage(Image image)
+	{
+		return TileHash.hash(image.png);
+	}
+
+	@Benchmark
+	public Object dedupLookup()
+	{
+		return bitmaps.get(hashes[next()]);
+	}
+}
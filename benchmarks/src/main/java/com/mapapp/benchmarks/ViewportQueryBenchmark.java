@@ -0,0 +1,113 @@
+package com.mapapp.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileMath;
+import com.mapapp.tools.TileDB;
+import com.mapapp.tools.TileGenerator;
+
+/**
+ * The query of SQLiteTileStore.fetchTiles for a phone screen of tiles, at a
+ * random place of a 64x64 tiles region, for both layouts of the sqlitedb:
+ * images in the tiles rows (inline), and images shared in the images table
+ * (dedup). Tiles without a hash are hashed like the app does.
+ *
+ * The databases are made by TileGenerator once and kept in the temporary
+ * directory, delete them to start again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewportQueryBenchmark
+{
+	final static int ZOOM = 12, LEFT = 2240, TOP = 1344, SIZE = 64;
+
+	// Visible region of TilesManager on a 1080x1920 screen
+	final static int WIDTH = 6, HEIGHT = 9;
+
+	final static String QUERY = "SELECT t.x,t.y,t.hash," + TileDB.IMAGE_COLUMN + " FROM " + TileDB.TILES_JOIN
+			+ " WHERE t.x >= ? AND t.x <= ? AND t.y >= ? AND t.y <= ? AND t.z == ?";
+
+	@Param({ "inline", "dedup" })
+	String layout;
+
+	Connection conn;
+	PreparedStatement query;
+	Random random = new Random(1);
+
+	@Setup
+	public void setup() throws Exception
+	{
+		File db = new File(System.getProperty("java.io.tmpdir"), "viewport-" + layout + ".sqlitedb");
+		if (!db.isFile())
+		{
+			File temp = new File(db.getPath() + ".tmp");
+			temp.delete();
+			try (Connection target = TileDB.open(temp.getPath()))
+			{
+				TileDB.bulkMode(target);
+				new TileGenerator(target, TileMath.pixelToLongitude((long) LEFT * TileMath.TILE_SIZE, ZOOM, 0.5),
+						TileMath.pixelToLatitude((long) TOP * TileMath.TILE_SIZE, ZOOM, 0.5),
+						TileMath.pixelToLongitude((long) (LEFT + SIZE) * TileMath.TILE_SIZE, ZOOM, -0.5),
+						TileMath.pixelToLatitude((long) (TOP + SIZE) * TileMath.TILE_SIZE, ZOOM, -0.5), ZOOM, ZOOM, 12000, 60000, 0.3,
+						layout.equals("dedup"), 1, Runtime.getRuntime().availableProcessors()).run();
+			}
+			if (!temp.renameTo(db)) throw new IllegalStateException("Can't create " + db);
+		}
+
+		conn = TileDB.open(db.getPath());
+		query = conn.prepareStatement(QUERY);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		query.close();
+		conn.close();
+	}
+
+	@Benchmark
+	public void fetchTiles(Blackhole bh) throws Exception
+	{
+		int left = LEFT + random.nextInt(SIZE - WIDTH), top = TOP + random.nextInt(SIZE - HEIGHT);
+		query.setInt(1, left);
+		query.setInt(2, left + WIDTH - 1);
+		query.setInt(3, top);
+		query.setInt(4, top + HEIGHT - 1);
+		query.setInt(5, TileDB.z(ZOOM));
+
+		try (ResultSet rs = query.executeQuery())
+		{
+			while (rs.next())
+			{
+				byte[] image = rs.getBytes(4);
+				String hash = rs.getString(3);
+				bh.consume(hash != null ? hash : TileHash.hash(image));
+				bh.consume(rs.getInt(1) + rs.getInt(2));
+			}
+		}
+	}
+}
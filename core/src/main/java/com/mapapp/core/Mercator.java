@@ -0,0 +1,106 @@
+package com.mapapp.core;
+
+/**
+ * The latitude part of the Web Mercator projection, the only costly one:
+ * latitude to ratio (0.0 at the top of the world map, 1.0 at the bottom)
+ * and back. Longitude is linear and needs no approximation.
+ *
+ * EXACT is the formula of TilesManager (Math.sin and Math.log one way,
+ * Math.atan and Math.exp back). FAST interpolates the exact values with
+ * cubic Hermite polynomials matching the exact derivatives, 2048 intervals
+ * each way (128 KB of coefficients in all). Its maximum error, measured over the
+ * whole latitude range by MercatorAccuracy in the benchmarks:
+ *
+ *   zoom 18   latitude to pixel 0.015 px, pixel to latitude 0.00001 px
+ *
+ * the error halves with every zoom level below. In the batch methods of
+ * TilesManager it projects about 4 times faster (ProjectionBenchmark).
+ * Meant for bulk projection of tracks and overlays, the map position
+ * itself uses EXACT.
+ * Latitudes must be within TilesManager.MinLatitude and MaxLatitude, ratios
+ * within 0 and 1, callers clamp as TilesManager does.
+ */
+public abstract class Mercator
+{
+	public abstract double ratioY(double latitude);
+
+	public abstract double latitude(double ratioY);
+
+	public final static Mercator EXACT = new Mercator()
+	{
+		@Override
+		public double ratioY(double latitude)
+		{
+			return TilesManager.ratioY(latitude);
+		}
+
+		@Override
+		public double latitude(double ratioY)
+		{
+			return 90.0 - 360.0 * Math.atan(Math.exp((ratioY - 0.5) * 2.0 * Math.PI)) / Math.PI;
+		}
+	};
+
+	public final static Mercator FAST = new Fast();
+
+	static class Fast extends Mercator
+	{
+		final static int INTERVALS = 2048;
+
+		final static double MIN_LATITUDE = TilesManager.MinLatitude;
+		final static double LATITUDE_STEP = (TilesManager.MaxLatitude - TilesManager.MinLatitude) / INTERVALS;
+		final static double INTERVALS_PER_DEGREE = 1 / LATITUDE_STEP;
+
+		// The cubic of every interval, 4 coefficients in a row, evaluated with
+		// t from 0 to 1 across the interval
+		private final double[] ratios = new double[INTERVALS * 4];
+		private final double[] latitudes = new double[INTERVALS * 4];
+
+		Fast()
+		{
+			for (int i = 0; i < INTERVALS; i++)
+			{
+				double from = MIN_LATITUDE + i * LATITUDE_STEP, to = from + LATITUDE_STEP;
+
+				// d(ratio)/d(latitude) = -sec(latitude) / 360 per degree
+				hermite(ratios, i, EXACT.ratioY(from), EXACT.ratioY(to), -LATITUDE_STEP / (360.0 * Math.cos(Math.toRadians(from))),
+						-LATITUDE_STEP / (360.0 * Math.cos(Math.toRadians(to))));
+
+				// d(latitude)/d(ratio) = -360 cos(latitude) in degrees
+				double top = EXACT.latitude((double) i / INTERVALS), bottom = EXACT.latitude((double) (i + 1) / INTERVALS);
+				hermite(latitudes, i, top, bottom, -360.0 * Math.cos(Math.toRadians(top)) / INTERVALS, -360.0 * Math.cos(Math.toRadians(bottom))
+						/ INTERVALS);
+			}
+		}
+
+		// Coefficients of the cubic Hermite going from v0 to v1 with the
+		// slopes m0 and m1, slopes per interval
+		static void hermite(double[] table, int i, double v0, double v1, double m0, double m1)
+		{
+			table[i * 4] = v0;
+			table[i * 4 + 1] = m0;
+			table[i * 4 + 2] = 3 * (v1 - v0) - 2 * m0 - m1;
+			table[i * 4 + 3] = 2 * (v0 - v1) + m0 + m1;
+		}
+
+		@Override
+		public double ratioY(double latitude)
+		{
+			return evaluate(ratios, (latitude - MIN_LATITUDE) * INTERVALS_PER_DEGREE);
+		}
+
+		@Override
+		public double latitude(double ratioY)
+		{
+			return evaluate(latitudes, ratioY * INTERVALS);
+		}
+
+		static double evaluate(double[] table, double position)
+		{
+			int i = Math.min(Math.max((int) position, 0), INTERVALS - 1);
+			double t = position - i;
+			int c = i * 4;
+			return table[c] + t * (table[c + 1] + t * (table[c + 2] + t * table[c + 3]));
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.mapapp.core;
+
+/**
+ * Morton (Z order) codes of tile indices: x in the even bits, y in the odd
+ * bits.
+ * The four children of a tile are consecutive in Morton order and their
+ * code shifted right by 2 is the code of the parent.
+ */
+public class Morton
+{
+	public static long encode(int x, int y)
+	{
+		return spread(x) | (spread(y) << 1);
+	}
+
+	public static int x(long code)
+	{
+		return compact(code);
+	}
+
+	public static int y(long code)
+	{
+		return compact(code >>> 1);
+	}
+
+	// Spreads the bits of v to the even bits
+	static long spread(int v)
+	{
+		long x = v & 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	// Takes back the even bits, the reverse of spread
+	static int compact(long x)
+	{
+		x &= 0x5555555555555555L;
+		x = (x | (x >>> 1)) & 0x3333333333333333L;
+		x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) x;
+	}
+}
@@ -0,0 +1,121 @@
+package com.mapapp.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PNG encoder for generated test tiles: 8 bit RGB, no interlace, the
+ * caller gives the filtered rows. Used where tiles have to be made without
+ * an image library, by the tile generator and the local tile server.
+ * Paletted images, the pyramid builder's parents of paletted tiles, are
+ * written unfiltered: filters only make palette indices compress worse.
+ */
+public class PngWriter
+{
+	// Bytes of a row of an RGB image, with the filter type byte it starts with
+	public static int rowSize(int width)
+	{
+		return 1 + width * 3;
+	}
+
+	// PNG of the rows, height rows of rowSize(width) bytes, deflated at level
+	// (Deflater.BEST_SPEED to DEFAULT_COMPRESSION)
+	public static byte[] rgb(int width, int height, byte[] rows, int level)
+	{
+		byte[] data = deflate(rows, height * rowSize(width), level);
+
+		ByteArrayOutputStream png = new ByteArrayOutputStream(data.length + 64);
+		png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, 8);
+
+		chunk(png, "IHDR", header(width, height, 2));
+		chunk(png, "IDAT", data);
+		chunk(png, "IEND", new byte[0]);
+		return png.toByteArray();
+	}
+
+	// PNG of an image of at most 256 colors, palette holds the ARGB colors
+	// and indices a byte per pixel, row after row
+	public static byte[] indexed(int width, int height, int[] palette, byte[] indices, int level)
+	{
+		// Every row starts with filter type 0, none
+		byte[] rows = new byte[height * (width + 1)];
+		for (int y = 0; y < height; y++)
+			System.arraycopy(indices, y * width, rows, y * (width + 1) + 1, width);
+		byte[] data = deflate(rows, rows.length, level);
+
+		byte[] colors = new byte[palette.length * 3];
+		int alphas = 0;
+		for (int i = 0; i < palette.length; i++)
+		{
+			colors[i * 3] = (byte) (palette[i] >>> 16);
+			colors[i * 3 + 1] = (byte) (palette[i] >>> 8);
+			colors[i * 3 + 2] = (byte) palette[i];
+			if (palette[i] >>> 24 != 0xFF) alphas = i + 1;
+		}
+
+		// Alpha of the colors up to the last one that isn't opaque
+		byte[] alpha = new byte[alphas];
+		for (int i = 0; i < alphas; i++)
+			alpha[i] = (byte) (palette[i] >>> 24);
+
+		ByteArrayOutputStream png = new ByteArrayOutputStream(data.length + colors.length + alpha.length + 64);
+		png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, 8);
+
+		chunk(png, "IHDR", header(width, height, 3));
+		chunk(png, "PLTE", colors);
+		if (alphas > 0) chunk(png, "tRNS", alpha);
+		chunk(png, "IDAT", data);
+		chunk(png, "IEND", new byte[0]);
+		return png.toByteArray();
+	}
+
+	// Size, 8 bits per sample, the color type, default compression and
+	// filters, no interlace
+	static byte[] header(int width, int height, int colorType)
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		writeInt(header, width);
+		writeInt(header, height);
+		header.write(new byte[] { 8, (byte) colorType, 0, 0, 0 }, 0, 5);
+		return header.toByteArray();
+	}
+
+	static byte[] deflate(byte[] bytes, int length, int level)
+	{
+		Deflater deflater = new Deflater(level);
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+		ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+		byte[] buffer = new byte[1 << 16];
+		while (!deflater.finished())
+		{
+			data.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return data.toByteArray();
+	}
+
+	static void chunk(ByteArrayOutputStream png, String type, byte[] data)
+	{
+		writeInt(png, data.length);
+
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < 4; i++)
+		{
+			png.write(type.charAt(i));
+			crc.update(type.charAt(i));
+		}
+		png.write(data, 0, data.length);
+		crc.update(data);
+		writeInt(png, (int) crc.getValue());
+	}
+
+	static void writeInt(ByteArrayOutputStream out, int v)
+	{
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+}
@@ -0,0 +1,47 @@
+package com.mapapp.core;
+
+/**
+ * Integer point, a tile index or a pixel of the map. Stands for
+ * android.graphics.Point so the core runs on any JVM.
+ */
+public class Point
+{
+	public int x, y;
+
+	public Point(int x, int y)
+	{
+		this.x = x;
+		this.y = y;
+	}
+
+	public Point()
+	{
+		this(0, 0);
+	}
+
+	public void set(int x, int y)
+	{
+		this.x = x;
+		this.y = y;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Point)) return false;
+		Point p = (Point) o;
+		return x == p.x && y == p.y;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * x + y;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "(" + x + "," + y + ")";
+	}
+}
@@ -1,4 +1,4 @@
-package com.mapapp;
+package com.mapapp.core;
 
 /**
  * Created by Pawel on 2015-05-24.
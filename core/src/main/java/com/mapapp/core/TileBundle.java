@@ -0,0 +1,84 @@
+package com.mapapp.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tile bundle format, the read only single file written by the tools
+ * (TileBundleWriter) and read by the app (MappedTileStore).
+ *
+ * Layout (big endian):
+ *   header  magic "MTB1", version, tile count, min zoom (short), max zoom (short),
+ *           index offset (long), data offset (long)            32 bytes
+ *   index   one entry per tile sorted by key:
+ *           key (long), image offset from data offset (long), image length (int)
+ *   data    the images one after the other, identical images are written once
+ *
+ * The key is the zoom in the top bits followed by the Morton code of x, y,
+ * so the index is sorted by zoom then along a Z curve and neighbor tiles are
+ * close in the file.
+ */
+public class TileBundle
+{
+	public final static int MAGIC = 0x4D544231; // "MTB1"
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 32;
+	public final static int ENTRY_SIZE = 20;
+
+	// Largest image a bundle may contain
+	public final static int MAX_IMAGE_SIZE = 1 << 20;
+
+	// Bits of the key below the zoom
+	final static long CODE_MASK = (1L << 58) - 1;
+
+	// Deepest zoom a key can hold
+	public final static int MAX_ZOOM = 29;
+
+	// Zoom goes in the top 6 bits, Morton codes of zoom <= MAX_ZOOM fit below
+	public static long key(int zoom, int x, int y)
+	{
+		return ((long) zoom << 58) | Morton.encode(x, y);
+	}
+
+	// First key of the zoom level, the keys of a level are below firstKey(zoom + 1)
+	public static long firstKey(int zoom)
+	{
+		return (long) zoom << 58;
+	}
+
+	public static int zoom(long key)
+	{
+		return (int) (key >>> 58);
+	}
+
+	public static int x(long key)
+	{
+		return Morton.x(key & CODE_MASK);
+	}
+
+	public static int y(long key)
+	{
+		return Morton.y(key & CODE_MASK);
+	}
+
+	// Tells whether the file at path starts like a tile bundle
+	public static boolean isBundle(String path)
+	{
+		try
+		{
+			RandomAccessFile f = new RandomAccessFile(path, "r");
+			try
+			{
+				return f.length() >= HEADER_SIZE && f.readInt() == MAGIC;
+			}
+			finally
+			{
+				f.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.mapapp.core;
+
+/**
+ * Delta package format, the tiles that changed between two versions of a
+ * map pack, written by the tools and applied by the app (both TileDelta).
+ *
+ * A delta is a stream of records:
+ *
+ *   int  magic "MTD1", int version
+ *   byte IMAGE,  UTF hash, int length, image bytes
+ *   byte TILE,   long key, UTF hash
+ *   byte DELETE, long key
+ *   byte END,    int number of TILE and DELETE records
+ *
+ * Keys are the TileBundle keys. An image record comes before the first tile
+ * using it. A stream cut before END is rejected, nothing of it is applied.
+ */
+public class TileDeltaFormat
+{
+	public final static int MAGIC = 0x4D544431; // "MTD1"
+	public final static int VERSION = 1;
+
+	public final static int END = 0;
+	public final static int IMAGE = 1;
+	public final static int TILE = 2;
+	public final static int DELETE = 3;
+}
@@ -0,0 +1,44 @@
+package com.mapapp.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hash of a tile image, used as the key of the images table
+ * so identical tiles (sea, forest, blank...) are stored only once.
+ */
+public class TileHash
+{
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	// Returns the SHA-1 of the image bytes as a lowercase hex string
+	public static String hash(byte[] image)
+	{
+		return hash(image, 0, image.length);
+	}
+
+	public static String hash(byte[] image, int offset, int length)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+
+		digest.update(image, offset, length);
+		byte[] sum = digest.digest();
+
+		char[] result = new char[sum.length * 2];
+		for (int i = 0; i < sum.length; i++)
+		{
+			result[i * 2] = HEX[(sum[i] >> 4) & 0xF];
+			result[i * 2 + 1] = HEX[sum[i] & 0xF];
+		}
+		return new String(result);
+	}
+}
@@ -0,0 +1,50 @@
+package com.mapapp.core;
+
+/**
+ * Web Mercator math of TilesManager (calcRatio, pixelXYToLonLat) without
+ * the clamping and rounding to whole pixels, for 256 pixel tiles.
+ * Used by the tools, which work on whole zoom levels at once.
+ */
+public class TileMath
+{
+	public final static int TILE_SIZE = 256;
+
+	public static double mapSize(int zoom)
+	{
+		return (double) TILE_SIZE * (1L << zoom);
+	}
+
+	// Same as pixelXYToLonLat, offset is added to the pixel (0.5 = center)
+	public static double pixelToLongitude(long pixelX, int zoom, double offset)
+	{
+		return 360.0 * ((pixelX + offset) / mapSize(zoom) - 0.5);
+	}
+
+	public static double pixelToLatitude(long pixelY, int zoom, double offset)
+	{
+		double y = 0.5 - (pixelY + offset) / mapSize(zoom);
+		return 90.0 - 360.0 * Math.atan(Math.exp(-y * 2.0 * Math.PI)) / Math.PI;
+	}
+
+	public static double pixelToLongitude(long pixelX, int zoom)
+	{
+		return pixelToLongitude(pixelX, zoom, 0);
+	}
+
+	public static double pixelToLatitude(long pixelY, int zoom)
+	{
+		return pixelToLatitude(pixelY, zoom, 0);
+	}
+
+	// Same as calcRatio times the map size
+	public static double longitudeToPixel(double longitude, int zoom)
+	{
+		return (longitude + 180.0) / 360.0 * mapSize(zoom);
+	}
+
+	public static double latitudeToPixel(double latitude, int zoom)
+	{
+		double sinLatitude = Math.sin(latitude * Math.PI / 180.0);
+		return (0.5 - Math.log((1 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * Math.PI)) * mapSize(zoom);
+	}
+}
@@ -0,0 +1,118 @@
+package com.mapapp.core;
+
+/**
+ * Range of tile indices, right and bottom included: the rect of a single
+ * tile has left == right. Unlike android.graphics.Rect such a rect is not
+ * empty, union and contains take the last row and column into account.
+ */
+public class TileRect
+{
+	public int left, top, right, bottom;
+
+	public TileRect(int left, int top, int right, int bottom)
+	{
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public TileRect(TileRect r)
+	{
+		this(r.left, r.top, r.right, r.bottom);
+	}
+
+	public TileRect()
+	{
+	}
+
+	public void set(int left, int top, int right, int bottom)
+	{
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public void set(TileRect r)
+	{
+		set(r.left, r.top, r.right, r.bottom);
+	}
+
+	// Number of columns and rows
+	public int width()
+	{
+		return right - left + 1;
+	}
+
+	public int height()
+	{
+		return bottom - top + 1;
+	}
+
+	public boolean isEmpty()
+	{
+		return right < left || bottom < top;
+	}
+
+	public boolean contains(int x, int y)
+	{
+		return x >= left && x <= right && y >= top && y <= bottom;
+	}
+
+	public boolean intersects(TileRect r)
+	{
+		return left <= r.right && r.left <= right && top <= r.bottom && r.top <= bottom;
+	}
+
+	// Grows to include r
+	public void union(TileRect r)
+	{
+		if (r.isEmpty()) return;
+		if (isEmpty())
+		{
+			set(r);
+			return;
+		}
+
+		left = Math.min(left, r.left);
+		top = Math.min(top, r.top);
+		right = Math.max(right, r.right);
+		bottom = Math.max(bottom, r.bottom);
+	}
+
+	// Grows to include the tile
+	public void union(int x, int y)
+	{
+		if (isEmpty())
+		{
+			set(x, y, x, y);
+			return;
+		}
+
+		left = Math.min(left, x);
+		top = Math.min(top, y);
+		right = Math.max(right, x);
+		bottom = Math.max(bottom, y);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof TileRect)) return false;
+		TileRect r = (TileRect) o;
+		return left == r.left && top == r.top && right == r.right && bottom == r.bottom;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return ((left * 31 + top) * 31 + right) * 31 + bottom;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[" + left + "," + top + " - " + right + "," + bottom + "]";
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * MapApp : Simple offline map application, made by Hisham Ghosheh for tutorial purposes only
+ * Tutorial on my blog
+ * http://ghoshehsoft.wordpress.com/2012/03/09/building-a-map-app-for-android/
+ * 
+ * Class tutorial:
+ * http://ghoshehsoft.wordpress.com/2012/03/19/mapapp3-writing-a-tiles-manager/
+ */
+
+package com.mapapp.core;
+
+// Projection and visible tiles of the map, plain Java so it can be run and
+// measured on a desktop JVM
+public class TilesManager
+{
+	public final static double EarthRadius = 6378137; // in meters
+	public final static double MinLatitude = -85.05112878; // Near South pole
+	public final static double MaxLatitude = 85.05112878; // Near North pole
+	public final static double MinLongitude = -180; // West
+	public final static double MaxLongitude = 180; // East
+
+	// this value should be extracted from DB, I used 17 for simplicity
+	protected int maxZoom = 17;
+	protected int tileSize = 256; // Size in pixels of a single tile image
+
+	// Dimensions in pixels of the view the map is rendered in.
+	protected int viewWidth, viewHeight;
+
+	// Number of tiles (horizontally and vertically) needed to fill the view,
+	// calculated later.
+	protected int tileCountX, tileCountY;
+
+	// Will hold the indices of the visible tiles
+	protected TileRect visibleRegion;
+
+	// Current location of the tiles manager
+	protected PointD location = new PointD(0, 0);
+
+	// Current zoom level
+	protected int zoom = 0;
+
+	// Tile at the location, kept so updating the region doesn't allocate it
+	private final Point tileIndex = new Point();
+
+	public TilesManager(int tileSize, int viewWidth, int viewHeight)
+	{
+		this.tileSize = tileSize;
+
+		this.setDimensions(viewWidth, viewHeight);
+		
+		// Updates visible region, this function will be explained later
+		updateVisibleRegion(location.x, location.y, zoom);
+	}
+	
+	public void setDimensions(int width, int height)
+	{
+		this.viewWidth = width;
+		this.viewHeight = height;
+
+		// Simple math :)
+		tileCountX = (int) ((float) viewWidth / tileSize);
+		tileCountY = (int) ((float) viewHeight / tileSize);
+	}
+
+
+	// Position on the world map, 0.0 to 1.0 from the top left corner
+	public static PointD calcRatio(double longitude, double latitude)
+	{
+		return calcRatio(longitude, latitude, new PointD());
+	}
+
+	// Same writing into out, which is returned
+	public static PointD calcRatio(double longitude, double latitude, PointD out)
+	{
+		out.x = ratioX(longitude);
+		out.y = ratioY(latitude);
+		return out;
+	}
+
+	public static double ratioX(double longitude)
+	{
+		return (longitude + 180.0) / 360.0;
+	}
+
+	public static double ratioY(double latitude)
+	{
+		double sinLatitude = Math.sin(latitude * Math.PI / 180.0);
+		return 0.5 - Math.log((1 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * Math.PI);
+	}
+
+	// Longitude of the left edge of the tiles in column x
+	public static double tileToLongitude(int x, int zoom)
+	{
+		return x / (double) (1 << zoom) * 360.0 - 180.0;
+	}
+
+	// Latitude of the top edge of the tiles in row y
+	public static double tileToLatitude(int y, int zoom)
+	{
+		double n = Math.PI * (1 - 2.0 * y / (1 << zoom));
+		return 180.0 / Math.PI * Math.atan(0.5 * (Math.exp(n) - Math.exp(-n)));
+	}
+
+	// Number of tiles across the world map
+	public int mapSize()
+	{
+		return 1 << zoom;
+	}
+
+	protected Point calcTileIndices(double longitude, double latitude, Point out)
+	{
+		int mapSize = mapSize();
+		out.set((int) (ratioX(longitude) * mapSize), (int) (ratioY(latitude) * mapSize));
+		return out;
+	}
+
+	protected void updateVisibleRegion(double longitude, double latitude, int zoom)
+	{
+		// Update manager state
+		location.x = longitude;
+		location.y = latitude;
+		this.zoom = zoom;
+
+		// Get the index of the tile we are interested in
+		Point tileIndex = calcTileIndices(location.x, location.y, this.tileIndex);
+
+		// We get some of the neighbors from left and some from right
+		// Same thing for up and down
+		int halfTileCountX = (int) ((float) (tileCountX + 1) / 2f);
+		int halfTileCountY = (int) ((float) (tileCountY + 1) / 2f);
+
+		visibleRegion = new TileRect(tileIndex.x - halfTileCountX, tileIndex.y - halfTileCountY, tileIndex.x + halfTileCountX, tileIndex.y
+				+ halfTileCountY);
+	}
+
+	// Simple clamp function
+	protected static double clamp(double x, double min, double max)
+	{
+		return Math.min(Math.max(x, min), max);
+	}
+
+	public double calcGroundResolution(double latitude)
+	{
+		latitude = clamp(latitude, MinLatitude, MaxLatitude);
+		return Math.cos(latitude * Math.PI / 180.0) * 2.0 * Math.PI * EarthRadius / (double) (tileSize * mapSize());
+	}
+
+	public Point lonLatToPixelXY(double longitude, double latitude)
+	{
+		return lonLatToPixelXY(longitude, latitude, new Point());
+	}
+
+	// Same writing into out, which is returned
+	public Point lonLatToPixelXY(double longitude, double latitude, Point out)
+	{
+		long mapSize = (long) tileSize << zoom;
+		out.set(lonToPixel(longitude, mapSize), latToPixel(latitude, mapSize));
+		return out;
+	}
+
+	// Same packed in a long, see pixelX and pixelY
+	public long lonLatToPixelPacked(double longitude, double latitude)
+	{
+		long mapSize = (long) tileSize << zoom;
+		return pack(lonToPixel(longitude, mapSize), latToPixel(latitude, mapSize));
+	}
+
+	public static long pack(int pixelX, int pixelY)
+	{
+		return ((long) pixelX << 32) | (pixelY & 0xFFFFFFFFL);
+	}
+
+	public static int pixelX(long packed)
+	{
+		return (int) (packed >> 32);
+	}
+
+	public static int pixelY(long packed)
+	{
+		return (int) packed;
+	}
+
+	// Projects count points at once, for tracks and POIs drawn every frame
+	public void lonLatToPixelXY(double[] longitudes, double[] latitudes, int[] pixelsX, int[] pixelsY, int count)
+	{
+		lonLatToPixelXY(longitudes, latitudes, pixelsX, pixelsY, count, Mercator.EXACT);
+	}
+
+	// Same with the given projection, Mercator.FAST for large overlays
+	public void lonLatToPixelXY(double[] longitudes, double[] latitudes, int[] pixelsX, int[] pixelsY, int count, Mercator mercator)
+	{
+		// Same results as lonToPixel and latToPixel, with the clamps written
+		// out, they cost as much as the fast projection
+		long mapSize = (long) tileSize << zoom;
+		double size = mapSize, max = mapSize - 1;
+		for (int i = 0; i < count; i++)
+		{
+			double longitude = longitudes[i], latitude = latitudes[i];
+			longitude = longitude < MinLongitude ? MinLongitude : longitude > MaxLongitude ? MaxLongitude : longitude;
+			latitude = latitude < MinLatitude ? MinLatitude : latitude > MaxLatitude ? MaxLatitude : latitude;
+
+			double x = ratioX(longitude) * size + 0.5, y = mercator.ratioY(latitude) * size + 0.5;
+			pixelsX[i] = (int) (x < 0 ? 0 : x > max ? max : x);
+			pixelsY[i] = (int) (y < 0 ? 0 : y > max ? max : y);
+		}
+	}
+
+	// Back from pixels to longitudes and latitudes, count points at once
+	public void pixelXYToLonLat(int[] pixelsX, int[] pixelsY, double[] longitudes, double[] latitudes, int count, Mercator mercator)
+	{
+		long mapSize = (long) tileSize << zoom;
+		double size = mapSize;
+		int max = (int) Math.min(mapSize - 1, Integer.MAX_VALUE);
+		for (int i = 0; i < count; i++)
+		{
+			int x = pixelsX[i], y = pixelsY[i];
+			x = x < 0 ? 0 : x > max ? max : x;
+			y = y < 0 ? 0 : y > max ? max : y;
+
+			longitudes[i] = 360.0 * (x / size - 0.5);
+			latitudes[i] = mercator.latitude(y / size);
+		}
+	}
+
+	static int lonToPixel(double longitude, long mapSize)
+	{
+		longitude = clamp(longitude, MinLongitude, MaxLongitude);
+		return (int) clamp(ratioX(longitude) * mapSize + 0.5, 0, mapSize - 1);
+	}
+
+	static int latToPixel(double latitude, long mapSize)
+	{
+		latitude = clamp(latitude, MinLatitude, MaxLatitude);
+		return (int) clamp(ratioY(latitude) * mapSize + 0.5, 0, mapSize - 1);
+	}
+
+	public PointD pixelXYToLonLat(int pixelX, int pixelY)
+	{
+		return pixelXYToLonLat(pixelX, pixelY, new PointD());
+	}
+
+	// Same writing into out, which is returned
+	public PointD pixelXYToLonLat(int pixelX, int pixelY, PointD out)
+	{
+		double mapSize = (double) ((long) tileSize << zoom);
+		double x = (clamp(pixelX, 0, mapSize - 1) / mapSize) - 0.5;
+		double y = 0.5 - (clamp(pixelY, 0, mapSize - 1) / mapSize);
+
+		out.y = 90.0 - 360.0 * Math.atan(Math.exp(-y * 2.0 * Math.PI)) / Math.PI;
+		out.x = 360.0 * x;
+		return out;
+	}
+
+	public void setZoom(int zoom)
+	{
+		zoom = (int) clamp(zoom, 0, maxZoom);
+		updateVisibleRegion(location.x, location.y, zoom);
+	}
+
+	public void setLocation(double longitude, double latitude)
+	{
+		updateVisibleRegion(longitude, latitude, zoom);
+	}
+
+	public TileRect getVisibleRegion()
+	{
+		return visibleRegion;
+	}
+
+	public int getZoom()
+	{
+		return zoom;
+	}
+
+	public int zoomIn()
+	{
+		setZoom(zoom + 1);
+		return zoom;
+	}
+
+	public int zoomOut()
+	{
+		setZoom(zoom - 1);
+		return zoom;
+	}
+
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+
+	public int getMaxZoom()
+	{
+		return maxZoom;
+	}
+
+	public void setMaxZoom(int maxZoom)
+	{
+		this.maxZoom = maxZoom;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,183 @@
+package com.mapapp.core;
+
+/**
+ * What the map view shows: zoom, size and center, immutable so it can be
+ * handed to the render and loader threads as it is. Changes make a new
+ * viewport that is published by replacing a volatile reference.
+ *
+ * The center is kept in world pixels of zoom WORLD_ZOOM, 64 bits, the
+ * pixel at the current zoom is a shift away. Panning is an integer add
+ * with no projection, and zooming out then in again comes back to the same
+ * place. Longitude and latitude are only computed when asked for.
+ */
+public final class Viewport
+{
+	// Deepest zoom, the resolution of the center
+	public final static int WORLD_ZOOM = 30;
+
+	public final int tileSize, width, height, zoom;
+
+	// Center in world pixels of WORLD_ZOOM
+	public final long centerX, centerY;
+
+	public Viewport(int tileSize, int width, int height, int zoom, long centerX, long centerY)
+	{
+		if (zoom < 0 || zoom > WORLD_ZOOM) throw new IllegalArgumentException("Zoom out of range: " + zoom);
+
+		this.tileSize = tileSize;
+		this.width = Math.max(width, 0);
+		this.height = Math.max(height, 0);
+		this.zoom = zoom;
+
+		long max = worldSize(tileSize) - 1;
+		this.centerX = Math.min(Math.max(centerX, 0), max);
+		this.centerY = Math.min(Math.max(centerY, 0), max);
+	}
+
+	// Viewport centered on a location
+	public static Viewport at(int tileSize, int width, int height, int zoom, double longitude, double latitude)
+	{
+		long size = worldSize(tileSize);
+		return new Viewport(tileSize, width, height, zoom, worldX(longitude, size), worldY(latitude, size));
+	}
+
+	static long worldSize(int tileSize)
+	{
+		return (long) tileSize << WORLD_ZOOM;
+	}
+
+	static long worldX(double longitude, long size)
+	{
+		longitude = TilesManager.clamp(longitude, TilesManager.MinLongitude, TilesManager.MaxLongitude);
+		return (long) (TilesManager.ratioX(longitude) * size);
+	}
+
+	static long worldY(double latitude, long size)
+	{
+		latitude = TilesManager.clamp(latitude, TilesManager.MinLatitude, TilesManager.MaxLatitude);
+		return (long) (TilesManager.ratioY(latitude) * size);
+	}
+
+	// Moves the center by dx, dy pixels of the current zoom
+	public Viewport pan(long dx, long dy)
+	{
+		if (dx == 0 && dy == 0) return this;
+
+		int shift = WORLD_ZOOM - zoom;
+		return new Viewport(tileSize, width, height, zoom, centerX + (dx << shift), centerY + (dy << shift));
+	}
+
+	public Viewport withZoom(int zoom)
+	{
+		return zoom == this.zoom ? this : new Viewport(tileSize, width, height, zoom, centerX, centerY);
+	}
+
+	public Viewport withSize(int width, int height)
+	{
+		return width == this.width && height == this.height ? this : new Viewport(tileSize, width, height, zoom, centerX, centerY);
+	}
+
+	public Viewport withCenter(double longitude, double latitude)
+	{
+		return at(tileSize, width, height, zoom, longitude, latitude);
+	}
+
+	// Size of the world map in pixels at the current zoom
+	public long mapSize()
+	{
+		return (long) tileSize << zoom;
+	}
+
+	// Center pixel of the world map at the current zoom
+	public long pixelX()
+	{
+		return centerX >> (WORLD_ZOOM - zoom);
+	}
+
+	public long pixelY()
+	{
+		return centerY >> (WORLD_ZOOM - zoom);
+	}
+
+	// World pixel at the top left corner of the view, subtract it from a
+	// world pixel to draw it
+	public long left()
+	{
+		return pixelX() - width / 2;
+	}
+
+	public long top()
+	{
+		return pixelY() - height / 2;
+	}
+
+	// World pixel of a location at the current zoom
+	public long pixelX(double longitude)
+	{
+		return worldX(longitude, worldSize(tileSize)) >> (WORLD_ZOOM - zoom);
+	}
+
+	public long pixelY(double latitude)
+	{
+		return worldY(latitude, worldSize(tileSize)) >> (WORLD_ZOOM - zoom);
+	}
+
+	// Meters a pixel covers at latitude
+	public double groundResolution(double latitude)
+	{
+		latitude = TilesManager.clamp(latitude, TilesManager.MinLatitude, TilesManager.MaxLatitude);
+		return Math.cos(latitude * Math.PI / 180.0) * 2.0 * Math.PI * TilesManager.EarthRadius / mapSize();
+	}
+
+	public double longitude()
+	{
+		return 360.0 * ((double) centerX / worldSize(tileSize) - 0.5);
+	}
+
+	public double latitude()
+	{
+		return Mercator.EXACT.latitude((double) centerY / worldSize(tileSize));
+	}
+
+	// Tiles the view shows, at least partly
+	public TileRect visibleTiles()
+	{
+		return visibleTiles(new TileRect());
+	}
+
+	// Same writing into out, which is returned
+	public TileRect visibleTiles(TileRect out)
+	{
+		long left = left(), top = top();
+		long max = (1L << zoom) - 1;
+		out.set((int) clamp(Math.floorDiv(left, tileSize), max), (int) clamp(Math.floorDiv(top, tileSize), max),
+				(int) clamp(Math.floorDiv(left + width - 1, tileSize), max), (int) clamp(Math.floorDiv(top + height - 1, tileSize), max));
+		return out;
+	}
+
+	static long clamp(long v, long max)
+	{
+		return Math.min(Math.max(v, 0), max);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Viewport)) return false;
+		Viewport v = (Viewport) o;
+		return tileSize == v.tileSize && width == v.width && height == v.height && zoom == v.zoom && centerX == v.centerX
+				&& centerY == v.centerY;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) (((zoom * 31 + width) * 31 + height) * 31 + (centerX ^ centerX >>> 32) * 31 + (centerY ^ centerY >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Viewport zoom " + zoom + " center " + pixelX() + "," + pixelY() + " size " + width + "x" + height;
+	}
+}
@@ -0,0 +1,273 @@
+package com.mapapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileRect;
+import com.mapapp.web.TileTranscoder;
+import com.mapapp.web.WebPTranscoder;
+
+/**
+ * Compares the size and BitmapFactory decode time of the tiles of a database
+ * as they are stored (PNG) and after being transcoded to WebP, and the
+ * decode time with loading the decoded pixels from a PixelCache, for the
+ * tiles of a database or of the world map bundle.
+ * Must run on a device, e.g. from a debug menu entry, the results go to the log.
+ * In the debug source set, release builds don't package it.
+ */
+public class TileDecodeBenchmark
+{
+	private final static String TAG = "TileDecodeBenchmark";
+
+	// Each image is decoded this many times, the first run is not measured
+	private final static int RUNS = 5;
+
+	// Tiles that aren't images BitmapFactory can decode are counted in
+	// undecodable and left out of the rest
+	public static class Result
+	{
+		public int tiles, undecodable;
+		public long pngBytes, webpBytes;
+		public long pngDecodeNanos, webpDecodeNanos;
+
+		@Override
+		public String toString()
+		{
+			if (tiles == 0) return "no tiles, " + undecodable + " undecodable";
+
+			return tiles + " tiles, size png:" + pngBytes + " webp:" + webpBytes + " bytes, decode png:" + pngDecodeNanos / 1000 / tiles
+					+ " webp:" + webpDecodeNanos / 1000 / tiles + " us/tile, " + undecodable + " undecodable";
+		}
+	}
+
+	public static class CacheResult
+	{
+		public int tiles, undecodable;
+		public long decodeNanos, cacheNanos;
+
+		@Override
+		public String toString()
+		{
+			if (tiles == 0) return "no tiles, " + undecodable + " undecodable";
+
+			return tiles + " tiles, time to bitmap decodeByteArray:" + decodeNanos / 1000 / tiles + " pixel cache:" + cacheNanos / 1000
+					/ tiles + " us/tile, " + undecodable + " undecodable";
+		}
+	}
+
+	public static Result run(String dbPath, int quality, int maxTiles)
+	{
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READONLY);
+		try
+		{
+			Result result = run(db, new WebPTranscoder(quality), maxTiles);
+			Log.i(TAG, result.toString());
+			return result;
+		}
+		finally
+		{
+			db.close();
+		}
+	}
+
+	public static Result run(SQLiteDatabase db, TileTranscoder transcoder, int maxTiles)
+	{
+		Result result = new Result();
+
+		// Works with both the old and the deduplicated layout
+		String query = "SELECT image FROM tiles WHERE image IS NOT NULL";
+		if (hasImagesTable(db)) query += " UNION ALL SELECT image FROM images";
+
+		Cursor cursor = db.rawQuery(query + " LIMIT " + maxTiles, null);
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				byte[] png = cursor.getBlob(0);
+				byte[] webp = transcoder.transcode(png);
+
+				long pngNanos = timeDecode(png), webpNanos = timeDecode(webp);
+				if (pngNanos < 0 || webpNanos < 0)
+				{
+					result.undecodable++;
+					continue;
+				}
+
+				result.tiles++;
+				result.pngBytes += png.length;
+				result.webpBytes += webp.length;
+				result.pngDecodeNanos += pngNanos;
+				result.webpDecodeNanos += webpNanos;
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		return result;
+	}
+
+	// Compares decoding the tiles of a database (e.g. World.sqlitedb) with
+	// loading their pixels from a PixelCache, the cache file is deleted after
+	public static CacheResult runPixelCache(String dbPath, String cachePath, Bitmap.Config config, int maxTiles) throws IOException
+	{
+		CacheResult result = new CacheResult();
+
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READONLY);
+		PixelCache cache = new PixelCache(cachePath, maxTiles, config);
+		try
+		{
+			String query = "SELECT image FROM tiles WHERE image IS NOT NULL";
+			if (hasImagesTable(db)) query += " UNION ALL SELECT image FROM images";
+
+			Cursor cursor = db.rawQuery(query + " LIMIT " + maxTiles, null);
+			try
+			{
+				while (cursor.moveToNext())
+				{
+					byte[] png = cursor.getBlob(0);
+					measure(cache, TileHash.hash(png), png, result);
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+		finally
+		{
+			cache.close();
+			db.close();
+			new File(cachePath).delete();
+		}
+
+		Log.i(TAG, result.toString());
+		return result;
+	}
+
+	// Same with the tiles of the world map bundled in the assets, cached
+	// under the "@id:offset" hashes of the bundle like the map does
+	public static CacheResult runPixelCacheWorld(Context context, String cachePath, Bitmap.Config config, final int maxTiles)
+			throws IOException
+	{
+		final CacheResult result = new CacheResult();
+
+		MappedTileStore store = MappedTileStore.openAsset(context, MapAppActivity.WORLD_MAP);
+		final PixelCache cache = new PixelCache(cachePath, maxTiles, config);
+		try
+		{
+			for (int zoom = store.getMinZoom(); zoom <= store.getMaxZoom() && result.tiles + result.undecodable < maxTiles; zoom++)
+			{
+				TileRect extent = store.getExtent(zoom);
+				if (extent == null) continue;
+
+				store.fetchTiles(extent, zoom, new TileStore.TileHandler()
+				{
+					@Override
+					public void onTile(int x, int y, String hash, ByteBuffer image)
+					{
+						if (result.tiles + result.undecodable >= maxTiles) return;
+
+						byte[] png = new byte[image.remaining()];
+						image.get(png);
+						measure(cache, hash, png, result);
+					}
+				});
+			}
+		}
+		finally
+		{
+			cache.close();
+			store.close();
+			new File(cachePath).delete();
+		}
+
+		Log.i(TAG, "world map: " + result);
+		return result;
+	}
+
+	// Caches a tile and adds its decode and cache load times to result
+	static void measure(PixelCache cache, String hash, byte[] png, CacheResult result)
+	{
+		Bitmap bm = BitmapFactory.decodeByteArray(png, 0, png.length);
+		if (bm == null)
+		{
+			result.undecodable++;
+			return;
+		}
+		cache.put(hash, bm);
+		bm.recycle();
+
+		// Tiles the cache can't hold (other size, alpha in RGB_565)
+		long cached = timeCache(cache, hash);
+		if (cached < 0) return;
+
+		result.tiles++;
+		result.decodeNanos += timeDecode(png);
+		result.cacheNanos += cached;
+	}
+
+	// Average time to get a bitmap from the cache in nanoseconds, -1 if
+	// the image isn't cached
+	static long timeCache(PixelCache cache, String hash)
+	{
+		Bitmap warm = cache.get(hash);
+		if (warm == null) return -1;
+		warm.recycle();
+
+		long total = 0;
+		for (int i = 1; i < RUNS; i++)
+		{
+			long start = System.nanoTime();
+			Bitmap bm = cache.get(hash);
+			total += System.nanoTime() - start;
+			bm.recycle();
+		}
+
+		return total / (RUNS - 1);
+	}
+
+	static boolean hasImagesTable(SQLiteDatabase db)
+	{
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'images'", null);
+		try
+		{
+			return cursor.moveToFirst();
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	// Average decode time of an image in nanoseconds, -1 if it can't be
+	// decoded
+	static long timeDecode(byte[] img)
+	{
+		// Warm up
+		Bitmap warm = BitmapFactory.decodeByteArray(img, 0, img.length);
+		if (warm == null) return -1;
+		warm.recycle();
+
+		long total = 0;
+		for (int i = 1; i < RUNS; i++)
+		{
+			long start = System.nanoTime();
+			Bitmap bm = BitmapFactory.decodeByteArray(img, 0, img.length);
+			total += System.nanoTime() - start;
+			bm.recycle();
+		}
+
+		return total / (RUNS - 1);
+	}
+}
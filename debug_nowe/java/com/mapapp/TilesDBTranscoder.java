@@ -0,0 +1,177 @@
+package com.mapapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.mapapp.core.TileHash;
+import com.mapapp.web.TileTranscoder;
+
+/**
+ * Re-encodes all the images of an existing database with a TileTranscoder,
+ * e.g. to turn a PNG database into a WebP one.
+ * Works in small transactions so it can be stopped and started again,
+ * images already converted are left as they are.
+ * A one-off conversion, in the debug source set like TileDecodeBenchmark.
+ */
+public class TilesDBTranscoder
+{
+	private final static String TAG = "TilesDBTranscoder";
+
+	// Number of images handled per transaction, blobs are kept in memory
+	// until the transaction is committed
+	private final static int BATCH_SIZE = 50;
+
+	private final SQLiteDatabase db;
+	private final TileTranscoder transcoder;
+
+	// Sizes in bytes of the images before and after conversion
+	private long bytesBefore, bytesAfter;
+
+	public TilesDBTranscoder(SQLiteDatabase db, TileTranscoder transcoder)
+	{
+		this.db = db;
+		this.transcoder = transcoder;
+	}
+
+	// Converts the database at dbPath and compacts it
+	public static void convert(String dbPath, TileTranscoder transcoder)
+	{
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READWRITE);
+		try
+		{
+			new TilesDBTranscoder(db, transcoder).run();
+
+			// Give the freed pages back to the file system
+			db.execSQL("VACUUM");
+		}
+		finally
+		{
+			db.close();
+		}
+	}
+
+	public void run()
+	{
+		SQLiteTileStore.prepareDB(db);
+
+		// Old layout first, this also moves them to the images table
+		int count = convertTileRows();
+		count += convertImages();
+
+		Log.i(TAG, count + " images converted, " + bytesBefore + " -> " + bytesAfter + " bytes");
+	}
+
+	// Converts images stored directly in tiles.image
+	int convertTileRows()
+	{
+		int count = 0;
+		long lastRow = -1;
+
+		while (true)
+		{
+			Cursor cursor = db.rawQuery("SELECT rowid,image FROM tiles WHERE rowid > " + lastRow
+					+ " AND image IS NOT NULL ORDER BY rowid LIMIT " + BATCH_SIZE, null);
+
+			db.beginTransaction();
+			try
+			{
+				if (!cursor.moveToFirst()) break;
+				do
+				{
+					lastRow = cursor.getLong(0);
+					byte[] img = cursor.getBlob(1);
+
+					String hash = storeImage(transcode(img));
+
+					ContentValues vals = new ContentValues();
+					vals.put("hash", hash);
+					vals.putNull("image");
+					db.update("tiles", vals, "rowid = " + lastRow, null);
+					count++;
+				}
+				while (cursor.moveToNext());
+
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+				cursor.close();
+			}
+		}
+
+		return count;
+	}
+
+	// Converts images of the images table, tiles referencing them are updated
+	int convertImages()
+	{
+		int count = 0;
+		String lastHash = "";
+
+		while (true)
+		{
+			Cursor cursor = db.rawQuery("SELECT hash,image FROM images WHERE hash > ? ORDER BY hash LIMIT " + BATCH_SIZE,
+					new String[] { lastHash });
+
+			db.beginTransaction();
+			try
+			{
+				if (!cursor.moveToFirst()) break;
+				do
+				{
+					lastHash = cursor.getString(0);
+					byte[] img = cursor.getBlob(1);
+					byte[] result = transcode(img);
+
+					// Nothing to do, already converted or not worth it
+					if (result == img) continue;
+
+					String hash = storeImage(result);
+
+					ContentValues vals = new ContentValues();
+					vals.put("hash", hash);
+					db.update("tiles", vals, "hash = ?", new String[] { lastHash });
+					db.delete("images", "hash = ?", new String[] { lastHash });
+					count++;
+				}
+				while (cursor.moveToNext());
+
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+				cursor.close();
+			}
+		}
+
+		return count;
+	}
+
+	byte[] transcode(byte[] img)
+	{
+		byte[] result = transcoder.transcode(img);
+		if (result != img)
+		{
+			bytesBefore += img.length;
+			bytesAfter += result.length;
+		}
+		return result;
+	}
+
+	// Same as SQLiteTileStore.insertTile, identical images are stored once
+	String storeImage(byte[] img)
+	{
+		String hash = TileHash.hash(img);
+
+		ContentValues vals = new ContentValues();
+		vals.put("hash", hash);
+		vals.put("image", img);
+		db.insertWithOnConflict("images", null, vals, SQLiteDatabase.CONFLICT_IGNORE);
+
+		return hash;
+	}
+}
@@ -0,0 +1,37 @@
+package com.mapapp;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Reads a ByteBuffer as a stream, lets the decoder read mapped tiles in place
+public class ByteBufferInputStream extends InputStream
+{
+	private final ByteBuffer buffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read()
+	{
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+	{
+		if (!buffer.hasRemaining()) return -1;
+
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public int available()
+	{
+		return buffer.remaining();
+	}
+}
@@ -1,19 +1,27 @@
 package com.mapapp;
 
+import java.io.IOException;
+
 import android.app.Activity;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.util.Log;
 import android.view.KeyEvent;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ZoomControls;
 
-import com.mapapp.PointD;
+import com.mapapp.core.PointD;
 import com.mapapp.R;
+import com.mapapp.MappedTileStore;
+import com.mapapp.ShardedTileStore;
+import com.mapapp.TileStore;
 import com.mapapp.TilesProvider;
 import com.mapapp.MapView;
 import com.mapapp.MapViewLocationListener;
@@ -37,6 +45,17 @@ public class MapAppActivity extends Activity {
         public final static String ZOOM = "zoom";
     }
 
+    // Downloaded tiles beyond this size are evicted, oldest first
+    private final static long DOWNLOADS_QUOTA = 256L * 1024 * 1024;
+
+    // Tile bundle of the assets made from World.sqlitedb. Named like an
+    // audio file since aapt stores those uncompressed, so the bundle is
+    // mapped in place in the APK and never copied, whatever the build
+    final static String WORLD_MAP = "world.bundle.mp3";
+
+    // Decoded tiles kept in the cache directory, 256 KB each
+    private final static int PIXEL_CACHE_SLOTS = 128;
+
     // Our MapView view, created in XML
     MapView mapView;
 
@@ -74,15 +93,35 @@ public class MapAppActivity extends Activity {
 
     void initViews()
     {
-        // Creating our database tilesProvider to pass it to our MapView
-        String path = Environment.getExternalStorageDirectory() + "/mapapp/Trojmiasto.sqlitedb";
-        tilesProvider = new TilesProvider(path, newTileHandler);
+        // Creating our tilesProvider to pass it to our MapView
+        // Every map pack in the mapapp directory is used (Trojmiasto, World...),
+        // downloaded tiles are kept in their own database
+        // The world map of the APK is read in place, always under the rest
+        String dir = Environment.getExternalStorageDirectory() + "/mapapp";
+        tilesProvider = new TilesProvider(ShardedTileStore.open(openWorldMap(), dir, dir + "/downloads.sqlitedb", DOWNLOADS_QUOTA),
+                newTileHandler);
+
+        // Tiles seen before are loaded without decoding them, the map
+        // works the same without the cache
+        try
+        {
+            tilesProvider.setPixelCache(new PixelCache(getCacheDir() + "/pixels.cache", PIXEL_CACHE_SLOTS, Bitmap.Config.ARGB_8888));
+        }
+        catch (IOException e)
+        {
+            Log.w("MapAppActivity", "No pixel cache", e);
+        }
 
         // If a location was saved while pausing the app then use it.
         if (savedGpsLocation != null) mapView.setGpsLocation(savedGpsLocation);
 
         mapView.setTilesProvider(tilesProvider);
 
+        // The map draws from its own thread on the surface behind it when
+        // the layout asks for it, with renderMode="view" it draws in onDraw
+        if (mapView.getRenderMode() == MapView.RENDER_SURFACE)
+            mapView.setRenderSurface((SurfaceView) findViewById(R.id.surface_map));
+
         // Update and draw the map view
         mapView.refresh();
 
@@ -90,6 +129,21 @@ public class MapAppActivity extends Activity {
         zoomControls.setOnZoomOutClickListener(zoomOut_Click);
     }
 
+    // The base world layer (zooms 0-4) bundled in the assets, null if it
+    // can't be read, the map then only has the packs of the mapapp directory
+    TileStore openWorldMap()
+    {
+        try
+        {
+            return MappedTileStore.openAsset(this, WORLD_MAP);
+        }
+        catch (IOException e)
+        {
+            Log.w("MapAppActivity", "No world map", e);
+            return null;
+        }
+    }
+
     @Override
     protected void onPause()
     {
@@ -103,6 +157,9 @@ public class MapAppActivity extends Activity {
         LocationManager locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
         locationManager.removeUpdates(locationListener);
 
+        // Stop drawing before the tiles go
+        mapView.setRenderSurface(null);
+
         // Closes the source of the tiles (Database in our case)
         tilesProvider.close();
         // Clears the tiles held in the tilesProvider
@@ -157,7 +214,7 @@ public class MapAppActivity extends Activity {
         else if (keyCode == KeyEvent.KEYCODE_M || keyCode == KeyEvent.KEYCODE_MENU)
         {
             mapView.setGpsLocation(46.142578, -20.841015, 0, 182);
-            mapView.invalidate();
+            mapView.requestDraw();
 
             return false;
         }
@@ -244,15 +301,16 @@ public class MapAppActivity extends Activity {
      * A message is sent from TilesProvider when
      * a new tile is downloaded and ready for rendering
      * The tile should be stored in the memory cache we have
-     * so all we have to do is to redraw the MapView
+     * so all we have to do is to redraw the MapView where the tile is
      */
     Handler newTileHandler = new Handler()
     {
         // This is executed on the UI thread
         public void handleMessage(android.os.Message msg)
         {
-            // Ask the mapView to redraw itself
-            if (mapView != null) mapView.invalidate();
+            // Ask the mapView to redraw the tile, arrivals of the same
+            // frame are drawn together
+            if (mapView != null) mapView.tileArrived(msg.arg1, msg.arg2, msg.what);
         };
     };
 }
@@ -0,0 +1,157 @@
+package com.mapapp;
+
+import android.graphics.Canvas;
+import android.view.SurfaceHolder;
+
+/**
+ * Draws a MapView on a SurfaceView from a thread of its own, so layout,
+ * touch handling and garbage collection on the main thread don't hold map
+ * frames back.
+ *
+ * The main thread only asks for frames. Every frame takes the viewport and
+ * the tiles the MapView last published, frames asked for while one is drawn
+ * make a single next frame. lockCanvas waits for the display to take the
+ * previous frame, which paces the loop, and it never draws more often than
+ * MIN_FRAME_NANOS apart.
+ */
+public class MapRenderThread extends Thread implements SurfaceHolder.Callback
+{
+	// 60 frames per second at most
+	final static long MIN_FRAME_NANOS = 1000000000L / 60;
+
+	private final MapView map;
+	private final SurfaceHolder holder;
+
+	// Guards the flags below, never held while drawing
+	private final Object lock = new Object();
+	private boolean surfaceReady, requested, running = true;
+
+	// Held while drawing, surfaceDestroyed waits for the frame to end
+	private final Object surfaceLock = new Object();
+
+	public MapRenderThread(MapView map, SurfaceHolder holder)
+	{
+		super("MapRender");
+		this.map = map;
+		this.holder = holder;
+
+		holder.addCallback(this);
+	}
+
+	// Asks for a frame, from any thread
+	public void requestRender()
+	{
+		synchronized (lock)
+		{
+			requested = true;
+			lock.notify();
+		}
+	}
+
+	// Stops the loop and waits for it, the thread can't be started again
+	public void quit()
+	{
+		holder.removeCallback(this);
+
+		synchronized (lock)
+		{
+			running = false;
+			lock.notify();
+		}
+
+		try
+		{
+			join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		long lastFrame = 0;
+
+		try
+		{
+			while (true)
+			{
+				synchronized (lock)
+				{
+					while (running && !(requested && surfaceReady))
+						lock.wait();
+
+					if (!running) return;
+					requested = false;
+				}
+
+				long wait = lastFrame + MIN_FRAME_NANOS - System.nanoTime();
+				if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+
+				drawFrame();
+				lastFrame = System.nanoTime();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Leaving
+		}
+	}
+
+	void drawFrame()
+	{
+		synchronized (surfaceLock)
+		{
+			// The surface may be gone since the frame was asked for
+			synchronized (lock)
+			{
+				if (!surfaceReady) return;
+			}
+
+			Canvas canvas = holder.lockCanvas();
+			if (canvas == null) return;
+
+			try
+			{
+				map.render(canvas);
+			}
+			finally
+			{
+				holder.unlockCanvasAndPost(canvas);
+			}
+		}
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder)
+	{
+		synchronized (lock)
+		{
+			surfaceReady = true;
+			requested = true;
+			lock.notify();
+		}
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
+	{
+		requestRender();
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder)
+	{
+		synchronized (lock)
+		{
+			surfaceReady = false;
+		}
+
+		// The surface mustn't be used once this returns
+		synchronized (surfaceLock)
+		{
+		}
+	}
+}
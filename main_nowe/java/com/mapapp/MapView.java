@@ -9,31 +9,39 @@
 
 package com.mapapp;
 
-import java.util.Collection;
-
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Point;
-import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 import android.view.View;
 
-import com.mapapp.PointD;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mapapp.core.PointD;
+import com.mapapp.core.TileRect;
+import com.mapapp.core.TilesManager;
+import com.mapapp.core.Viewport;
 import com.mapapp.R;
 import com.mapapp.Tile;
-import com.mapapp.TilesManager;
 import com.mapapp.TilesProvider;
 
 public class MapView extends View
 {
+	// How the map is drawn, the renderMode attribute
+	public final static int RENDER_VIEW = 0; // in onDraw, on the UI thread
+	public final static int RENDER_SURFACE = 1; // by a MapRenderThread on a SurfaceView behind
+
 	// Needed to pass to View constructor
 	protected Context context;
 
@@ -51,19 +59,83 @@ public class MapView extends View
 	protected Paint bitmapPaint = new Paint();
 	protected Paint circlePaint = new Paint();
 
-	// The location of the view center in longitude, latitude
-	protected PointD seekLocation = new PointD(0, 0);
-	// Location of the phone using Gps data
-	protected Location gpsLocation = null;
-	// If true then seekLocation will always match gpsLocation
+	// The tiles drawn once into a bitmap moved with the view
+	protected TileLayer tileLayer = new TileLayer(bitmapPaint);
+
+	// Zoom, size and center of the view in 64 bit world pixels. Immutable,
+	// every change publishes a new one so the threads that draw and load
+	// tiles read a consistent view with a single read
+	protected volatile Viewport viewport;
+	// Location of the phone using Gps data, replaced not changed since
+	// the render thread reads it
+	protected volatile Location gpsLocation = null;
+	// If true then the view center will always follow gpsLocation
 	protected boolean autoFollow = false;
 
 	// An image to draw at the phone's position
 	protected Bitmap positionMarker;
 
+	// RENDER_VIEW or RENDER_SURFACE
+	protected int renderMode = RENDER_VIEW;
+
+	// Draws the map when it's on a surface, null in onDraw
+	protected volatile MapRenderThread renderThread;
+
 	// touch position values kept for panning\dragging
 	protected PointD lastTouchPos = new PointD(-1, -1);
 
+	// Finger moves since the last frame, applied once per frame. Touch
+	// screens report moves at 120-240 Hz, several times a frame
+	private int pendingX, pendingY;
+	private boolean framePending;
+
+	// Tiles that arrived since the last frame, all at dirtyZoom. Redrawn
+	// together at the next frame instead of a full redraw per tile
+	private final TileRect dirtyTiles = new TileRect(0, 0, -1, -1);
+	private int dirtyZoom = -1;
+
+	// Tiles asked for by the last fetchTiles, no need to ask again while
+	// the view stays over the same tiles
+	private final TileRect fetchedTiles = new TileRect(0, 0, -1, -1);
+	private int fetchedZoom = -1;
+	private final TileRect frameTiles = new TileRect();
+
+	// Reads and decodes the tiles off the UI thread, a fetch takes several
+	// frames. Fetches asked for while one is queued make a single one, of
+	// the view as it is when it runs. null while detached
+	private ExecutorService tileLoader;
+	private final Object loaderLock = new Object();
+	private final AtomicBoolean fetchQueued = new AtomicBoolean();
+
+	private final Runnable fetchTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			fetchQueued.set(false);
+
+			TilesProvider provider = tileProvider;
+			if (provider == null) return;
+
+			// One read, the tiles and the zoom come from the same view
+			Viewport v = viewport;
+			TileRect rect = new TileRect();
+			v.visibleTiles(rect);
+			provider.fetchTiles(rect, v.zoom);
+
+			postDraw();
+		}
+	};
+
+	private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback()
+	{
+		@Override
+		public void doFrame(long frameTimeNanos)
+		{
+			onFrame();
+		}
+	};
+
 	@Override
 	protected void onLayout(boolean changed, int left, int top, int right, int bottom)
 	{
@@ -76,6 +148,7 @@ public class MapView extends View
 			this.viewHeight = getHeight();
 
 			tileManager.setDimensions(viewWidth, viewHeight);
+			viewport = viewport.withSize(viewWidth, viewHeight);
 
 			refresh();
 		}
@@ -98,6 +171,7 @@ public class MapView extends View
 			try
 			{
 				zoomLevel = arr.getInt(R.styleable.MapView_zoomLevel, 0);
+				renderMode = arr.getInt(R.styleable.MapView_renderMode, RENDER_VIEW);
 				Drawable d = arr.getDrawable(R.styleable.MapView_marker);
 				if (d != null) positionMarker = ((BitmapDrawable) d).getBitmap();
 			}
@@ -108,6 +182,7 @@ public class MapView extends View
 
 			tileManager = new TilesManager(256, viewWidth, viewHeight);
 			tileManager.setZoom(zoomLevel);
+			viewport = Viewport.at(256, viewWidth, viewHeight, tileManager.getZoom(), 0, 0);
 		}
 
 		initPaints();
@@ -135,6 +210,7 @@ public class MapView extends View
 		// You might want to pass tile size as a parameter or even calculate it
 		// somehow
 		tileManager = new TilesManager(256, viewWidth, viewHeight);
+		viewport = Viewport.at(256, viewWidth, viewHeight, tileManager.getZoom(), 0, 0);
 
 		// Initializes paints
 		initPaints();
@@ -173,20 +249,102 @@ public class MapView extends View
 		circlePaint.setAntiAlias(true);
 	}
 
+	// Asks for the tiles of the view, they are drawn once they're loaded
 	void fetchTiles()
 	{
-		// Update tilesManager to have the center of the view as its location
-		tileManager.setLocation(seekLocation.x, seekLocation.y);
+		if (tileProvider == null) return;
 
-		// Get the visible tiles indices as a Rect
-		Rect visibleRegion = tileManager.getVisibleRegion();
+		// Remembered so moves within the same tiles don't ask again
+		Viewport v = viewport;
+		v.visibleTiles(fetchedTiles);
+		fetchedZoom = v.zoom;
 
-		if (tileProvider == null) return;
+		queueFetch();
+	}
 
-		// Tell tiles provider what tiles we need and which zoom level.
-		// The tiles will be stored inside the tilesProvider.
-		// We can get those tiles later when drawing the view
-		tileProvider.fetchTiles(visibleRegion, tileManager.getZoom());
+	// Queues a fetch on the loader thread, from any thread
+	void queueFetch()
+	{
+		if (fetchQueued.compareAndSet(false, true)) runOnLoader(fetchTask);
+	}
+
+	// Runs task on the loader thread, after the ones queued before
+	void runOnLoader(Runnable task)
+	{
+		synchronized (loaderLock)
+		{
+			if (tileLoader == null) tileLoader = Executors.newSingleThreadExecutor();
+			tileLoader.execute(task);
+		}
+	}
+
+	// Stops the loader, a fetch still running finishes first
+	void stopLoader()
+	{
+		synchronized (loaderLock)
+		{
+			if (tileLoader != null) tileLoader.shutdown();
+			tileLoader = null;
+			fetchQueued.set(false);
+		}
+	}
+
+	void scheduleFrame()
+	{
+		if (framePending) return;
+
+		framePending = true;
+		Choreographer.getInstance().postFrameCallback(frameCallback);
+	}
+
+	// Applies the moves of the frame. The tiles are only fetched again when
+	// the view crosses a tile boundary, otherwise the map is just drawn at
+	// its new offset. Without moves only the tiles that arrived are redrawn
+	void onFrame()
+	{
+		framePending = false;
+
+		boolean moved = pendingX != 0 || pendingY != 0;
+		Viewport v = viewport.pan(-pendingX, -pendingY);
+		pendingX = pendingY = 0;
+		viewport = v;
+
+		if (moved)
+		{
+			v.visibleTiles(frameTiles);
+			if (v.zoom != fetchedZoom || !frameTiles.equals(fetchedTiles)) fetchTiles();
+
+			requestDraw();
+		}
+		else if (!dirtyTiles.isEmpty() && dirtyZoom == v.zoom)
+		{
+			// Screen rect of the tiles, within the view
+			long left = v.left(), top = v.top();
+			requestDraw((int) clamp((long) dirtyTiles.left * v.tileSize - left, v.width),
+					(int) clamp((long) dirtyTiles.top * v.tileSize - top, v.height),
+					(int) clamp((long) (dirtyTiles.right + 1) * v.tileSize - left, v.width),
+					(int) clamp((long) (dirtyTiles.bottom + 1) * v.tileSize - top, v.height));
+		}
+
+		dirtyTiles.set(0, 0, -1, -1);
+	}
+
+	static long clamp(long v, long max)
+	{
+		return Math.min(Math.max(v, 0), max);
+	}
+
+	// A tile is ready to be drawn, called on the UI thread
+	public void tileArrived(int x, int y, int zoom)
+	{
+		// Tiles of another zoom aren't visible
+		if (zoom != viewport.zoom) return;
+
+		if (dirtyZoom != zoom) dirtyTiles.set(0, 0, -1, -1);
+		dirtyZoom = zoom;
+		dirtyTiles.union(x, y);
+
+		scheduleFrame();
 	}
 
 	@Override
@@ -207,6 +365,16 @@ public class MapView extends View
 			return;
 		}
 
+		// The render thread draws the map on the surface behind
+		if (renderThread != null) return;
+
+		render(canvas);
+	}
+
+	// Draws the map, from onDraw or on the render thread. Everything it
+	// reads is published whole (viewport, tiles, gps location)
+	void render(Canvas canvas)
+	{
 		if (tileProvider == null)
 		{
 			canvas.drawARGB(255, 250, 111, 103);
@@ -223,94 +391,83 @@ public class MapView extends View
 			return;
 		}
 
-		// Clear the view to grey
-		canvas.drawARGB(255, 100, 100, 100);
-
 		/*
-		 * To draw the map we need to find the position of the pixel representing the center of the view.
-		 * We need the position to be relative to the full world map, lets call this pixel position "pix"
-		 * pix.x will range from 0 to (2^zoom)*tileSize-1, same for pix.y		
-		 * To draw anything on the map we subtract pix from the original position
-		 * It's just like dragging the map so that the pixel representing the gps location gets into the center of the view 		 
-		*/
-
-		// In a square world map,
-		// we need to know pix location as two values from 0.0 to 1.0
-		PointD pixRatio = TilesManager.calcRatio(seekLocation.x, seekLocation.y);
-
-		// Full world map width in pixels
-		int mapWidth = tileManager.mapSize() * 256;
-		Point pix = new Point((int) (pixRatio.x * mapWidth), (int) (pixRatio.y * mapWidth));
-
-		/*
-		 * Subtracting pix from each tile position will result in pix being drawn at the top left corner of the view 
-		 * To drag it to the center we add (viewWidth/2, viewHeight/2) to the final result
-		 * pos.x = pos.x - pix.x + viewWidth/2f
-		 * pos.x = pox.x - (pix.x - viewWidth/2f)
-		 * ---> offset.x =  (pix.x - viewWidth/2f)
-		 * same for offset.y
+		 * To draw the map we need the position of the pixel at the top left
+		 * corner of the view, relative to the full world map. It ranges from
+		 * -viewWidth/2 to (2^zoom)*tileSize-1, past 2^31 at the deep zooms so
+		 * it's a long. To draw anything on the map we subtract it from the
+		 * world pixel of that thing, that's what drags the center of the view
+		 * into place.
 		 */
+		Viewport v = viewport;
+		long left = v.left(), top = v.top();
 
-		Point offset = new Point((int) (pix.x - viewWidth / 2f), (int) (pix.y - viewHeight / 2f));
-		// offset is now ready to use
+		// The tile layer is a single bitmap drawn at the offset. Without
+		// memory for it the tiles are drawn one by one
+		if (!tileLayer.draw(canvas, v, tileProvider.getTiles()))
+		{
+			// Clear the view to grey
+			canvas.drawARGB(255, 100, 100, 100);
 
-		// Drawing tiles in a separate function to make the code more readable
-		drawTiles(canvas, offset);
+			// Drawing tiles in a separate function to make the code more readable
+			drawTiles(canvas, v, left, top);
+		}
 
 		// Draw the marker that pinpoints the user's location
-		drawMarker(canvas, offset);
+		drawMarker(canvas, v, left, top);
 	}
 
-	void drawTiles(Canvas canvas, Point offset)
+	void drawTiles(Canvas canvas, Viewport v, long left, long top)
 	{
 		/* 
-		 * We use the same object in the TilesProvider when drawing
-		 * This is necessary to make sure no one changes the available tiles
-		 * while the MapView is being rendered
+		 * The set of tiles is never changed, the provider replaces it.
+		 * Whatever set we read here stays the same while the MapView is
+		 * being rendered, without a lock
 		 */
-		synchronized (tileProvider.tilesLock)
+		TileSet tiles = tileProvider.getTiles();
+
+		// Tiles of another zoom don't fit the view, the next set will
+		if (tiles.zoom != v.zoom) return;
+
+		// left,top are the calculated offset
+
+		// Go trough all the available tiles
+		for (int i = 0; i < tiles.size(); i++)
 		{
-			// Get tiles from the Hashtable inside tilesProvider
-			Collection<Tile> tilesList = tileProvider.getTiles().values();
+			Tile tile = tiles.get(i);
 
-			// x,y are the calculated offset
+			// We act as if we're drawing a map of the whole world at a
+			// specific zoom level
+			// The top left corner of the map occupies the pixel (0,0) of
+			// the view
+			long tileX = (long) tile.x * v.tileSize;
+			long tileY = (long) tile.y * v.tileSize;
 
-			// Go trough all the available tiles
-			for (Tile tile : tilesList)
-			{
-				// We act as if we're drawing a map of the whole world at a
-				// specific
-				// zoom level
-				// The top left corner of the map occupies the pixel (0,0) of
-				// the
-				// view
-				int tileSize = tileManager.getTileSize();
-				long tileX = tile.x * tileSize;
-				long tileY = tile.y * tileSize;
-
-				// Subtract offset from the previous calculations
-				long finalX = tileX - offset.x;
-				long finalY = tileY - offset.y;
-
-				// Draw the bitmap of the tiles using a simple paint
-				canvas.drawBitmap(tile.img, finalX, finalY, bitmapPaint);
-			}
+			// Subtract offset from the previous calculations
+			long finalX = tileX - left;
+			long finalY = tileY - top;
+
+			// Skip the tiles outside the view
+			if (finalX >= v.width || finalY >= v.height || finalX + v.tileSize <= 0 || finalY + v.tileSize <= 0) continue;
+
+			// Draw the bitmap of the tiles using a simple paint
+			canvas.drawBitmap(tile.img, finalX, finalY, bitmapPaint);
 		}
 	}
 
-	void drawMarker(Canvas canvas, Point offset)
+	void drawMarker(Canvas canvas, Viewport v, long left, long top)
 	{
+		Location gpsLocation = this.gpsLocation;
+
 		// Proceed only if a gps fix is available
 		if (gpsLocation != null)
 		{
 			// Get marker position in pixels as if we're going to draw it on a
 			// world map where the top left corner of the map occupies the (0,0)
 			// pixel of the view
-			Point markerPos = tileManager.lonLatToPixelXY(gpsLocation.getLongitude(), gpsLocation.getLatitude());
-
-			// Add offset to the marker position
-			int markerX = markerPos.x - offset.x;
-			int markerY = markerPos.y - offset.y;
+			// Subtract offset from the marker position
+			float markerX = v.pixelX(gpsLocation.getLongitude()) - left;
+			float markerY = v.pixelY(gpsLocation.getLatitude()) - top;
 
 			// If marker bitmap exists
 			if (positionMarker != null)
@@ -332,7 +489,7 @@ public class MapView extends View
 			// We first calculate its radius
 
 			// Calculate how many meters one pixel represents
-			float ground = (float) tileManager.calcGroundResolution(gpsLocation.getLatitude());
+			float ground = (float) v.groundResolution(gpsLocation.getLatitude());
 
 			// Location.getAccuracy() returns the accuracy in meters.
 			float rad = gpsLocation.getAccuracy() / ground;
@@ -344,7 +501,7 @@ public class MapView extends View
 			canvas.drawText("lon:" + gpsLocation.getLongitude(), 0, 20 * pen++, fontPaint);
 			canvas.drawText("lat:" + gpsLocation.getLatitude(), 0, 20 * pen++, fontPaint);
 			canvas.drawText("alt:" + gpsLocation.getAltitude(), 0, 20 * pen++, fontPaint);
-			canvas.drawText("Zoom:" + tileManager.getZoom(), 0, 20 * pen++, fontPaint);
+			canvas.drawText("Zoom:" + v.zoom, 0, 20 * pen++, fontPaint);
 		}
 	}
 
@@ -365,31 +522,18 @@ public class MapView extends View
 		{
 			autoFollow = false;
 
-			PointD current = new PointD(event.getX(), event.getY());
-
-			// Find how many pixels the users finger moved in both x and y
-			PointD diff = new PointD(current.x - lastTouchPos.x, current.y - lastTouchPos.y);
+			// Find how many whole pixels the users finger moved in both x and y
+			int diffX = (int) (event.getX() - lastTouchPos.x), diffY = (int) (event.getY() - lastTouchPos.y);
 
-			// In a full wolrd map, get the position of the center of the view
-			// in pixels
-			Point pixels1 = tileManager.lonLatToPixelXY(seekLocation.x, seekLocation.y);
+			// The center of the view moves the other way at the next frame
+			pendingX += diffX;
+			pendingY += diffY;
+			scheduleFrame();
 
-			// Subtract diff from that position
-			Point pixels2 = new Point(pixels1.x - (int) diff.x, pixels1.y - (int) diff.y);
-
-			// Reconvert the final result to longitude, latitude point
-			PointD newSeek = tileManager.pixelXYToLonLat((int) pixels2.x, (int) pixels2.y);
-
-			// Finally move the center of the view to the new location
-			seekLocation = newSeek;
-
-			// Refresh the view
-			fetchTiles();
-			invalidate(); // Causes the view to redraw itself
-
-			// Prepare for the next drag event
-			lastTouchPos.x = current.x;
-			lastTouchPos.y = current.y;
+			// Prepare for the next drag event, the fraction of a pixel left
+			// counts in the next one so slow drags don't drift
+			lastTouchPos.x += diffX;
+			lastTouchPos.y += diffY;
 
 			return true;
 		}
@@ -397,31 +541,94 @@ public class MapView extends View
 		return super.onTouchEvent(event);
 	}
 
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		// A drag may still wait for its frame
+		Choreographer.getInstance().removeFrameCallback(frameCallback);
+		framePending = false;
+
+		stopLoader();
+		setRenderSurface(null);
+		tileLayer.release();
+
+		super.onDetachedFromWindow();
+	}
+
 	// Fetch the tiles then draw, don't call to often
 	public void refresh()
 	{
 		fetchTiles();
-		invalidate();
+		requestDraw();
 	}
 
 	// Like refresh but called from a non UI thread
 	public void postRefresh()
 	{
-		fetchTiles();
-		postInvalidate();
+		if (tileProvider != null) queueFetch();
+		postDraw();
+	}
+
+	// Draws the map again, from a non UI thread
+	void postDraw()
+	{
+		MapRenderThread thread = renderThread;
+		if (thread != null) thread.requestRender();
+		else postInvalidate();
+	}
+
+	// Draws the map again, in onDraw or on the surface
+	public void requestDraw()
+	{
+		MapRenderThread thread = renderThread;
+		if (thread != null) thread.requestRender();
+		else invalidate();
+	}
+
+	// Draws the part of the map in the rect again, the surface is always
+	// drawn whole
+	public void requestDraw(int left, int top, int right, int bottom)
+	{
+		MapRenderThread thread = renderThread;
+		if (thread != null) thread.requestRender();
+		else invalidate(left, top, right, bottom);
+	}
+
+	public int getRenderMode()
+	{
+		return renderMode;
+	}
+
+	// Draws the map on surface from a thread of its own, the view only
+	// handles touches on top of it. null goes back to drawing in onDraw
+	public void setRenderSurface(SurfaceView surface)
+	{
+		if (renderThread != null)
+		{
+			renderThread.quit();
+			renderThread = null;
+		}
+
+		if (surface != null)
+		{
+			renderThread = new MapRenderThread(this, surface.getHolder());
+			renderThread.start();
+		}
+
+		invalidate();
 	}
 
 	// Simply sets seek location to gpsLocation (if exists)
 	public void followMarker()
 	{
+		Location gpsLocation = this.gpsLocation;
 		if (gpsLocation != null)
 		{
-			seekLocation.x = gpsLocation.getLongitude();
-			seekLocation.y = gpsLocation.getLatitude();
+			viewport = viewport.withCenter(gpsLocation.getLongitude(), gpsLocation.getLatitude());
 			autoFollow = true;
 
 			fetchTiles();
-			invalidate();
+			requestDraw();
 		}
 	}
 
@@ -439,10 +646,27 @@ public class MapView extends View
 
 	protected void onMapZoomChanged()
 	{
-		if (tileProvider != null) tileProvider.clear();
+		// TilesManager keeps the zoom within its limits
+		viewport = viewport.withZoom(tileManager.getZoom());
+
+		// Clearing waits for a fetch still running, not on the UI thread. A
+		// fetch queued before it ran first, so fetch again after
+		final TilesProvider provider = tileProvider;
+		if (provider != null)
+		{
+			runOnLoader(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					provider.clear();
+					queueFetch();
+				}
+			});
+		}
 
 		fetchTiles();
-		invalidate();
+		requestDraw();
 	}
 
 	// Returns the gps coordinates of the user
@@ -454,14 +678,20 @@ public class MapView extends View
 	// Returns the gps coordinates of our view center
 	public PointD getSeekLocation()
 	{
-		return seekLocation;
+		Viewport v = viewport;
+		return new PointD(v.longitude(), v.latitude());
 	}
 
 	// Centers the given gps coordinates in our view
 	public void setSeekLocation(double longitude, double latitude)
 	{
-		seekLocation.x = longitude;
-		seekLocation.y = latitude;
+		viewport = viewport.withCenter(longitude, latitude);
+	}
+
+	// The view as it is now, safe to keep and use from any thread
+	public Viewport getViewport()
+	{
+		return viewport;
 	}
 
 	// Sets the marker position
@@ -473,11 +703,12 @@ public class MapView extends View
 	// Sets the marker position
 	public void setGpsLocation(double longitude, double latitude, double altitude, float accuracy)
 	{
-		if (gpsLocation == null) gpsLocation = new Location("");
-		gpsLocation.setLongitude(longitude);
-		gpsLocation.setLatitude(latitude);
-		gpsLocation.setAltitude(altitude);
-		gpsLocation.setAccuracy(accuracy);
+		Location location = new Location("");
+		location.setLongitude(longitude);
+		location.setLatitude(latitude);
+		location.setAltitude(altitude);
+		location.setAccuracy(accuracy);
+		gpsLocation = location;
 
 		if (autoFollow) followMarker();
 
@@ -485,7 +716,7 @@ public class MapView extends View
 
 	public int getZoom()
 	{
-		return tileManager.getZoom();
+		return viewport.zoom;
 	}
 
 	public void setZoom(int zoom)
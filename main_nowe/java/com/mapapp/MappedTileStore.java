@@ -0,0 +1,294 @@
+package com.mapapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileRect;
+
+/**
+ * Read only store over a tile bundle file, memory mapped, see TileBundle
+ * for the layout. Bundles are written by the tools TileStoreTool.
+ */
+public class MappedTileStore implements TileStore
+{
+	final static int HEADER_SIZE = TileBundle.HEADER_SIZE;
+	final static int ENTRY_SIZE = TileBundle.ENTRY_SIZE;
+	final static int MAX_IMAGE_SIZE = TileBundle.MAX_IMAGE_SIZE;
+
+	// A mapping can't exceed 2GB, the data is mapped in segments overlapping
+	// by MAX_IMAGE_SIZE so an image is always inside the segment it starts in
+	final static long SEGMENT_SIZE = 1L << 30;
+
+	// The bundle file, or the APK for a bundle read from the assets
+	private final Closeable file;
+	private final ByteBuffer index;
+	private final ByteBuffer[] segments;
+	private final int count;
+	private final int minZoom, maxZoom;
+
+	// Tells the bundle from the other ones in the image hashes, which are
+	// only offsets. The same bundle gets the same id every time it's opened
+	// since decoded tiles are cached on disk by hash
+	private final String id;
+
+	public MappedTileStore(String path) throws IOException
+	{
+		this(new RandomAccessFile(path, "r"), path);
+	}
+
+	private MappedTileStore(RandomAccessFile file, String path) throws IOException
+	{
+		this(file, file.getChannel(), 0, file.length(), path);
+	}
+
+	// The bundle is the part of the file starting at start, all offsets of
+	// the bundle are relative to it
+	MappedTileStore(Closeable file, FileChannel channel, long start, long length, String name) throws IOException
+	{
+		this.file = file;
+
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, HEADER_SIZE);
+		if (header.getInt(0) != TileBundle.MAGIC || header.getInt(4) != TileBundle.VERSION)
+		{
+			file.close();
+			throw new IOException(name + " is not a tile bundle");
+		}
+
+		count = header.getInt(8);
+		minZoom = count == 0 ? -1 : header.getShort(12);
+		maxZoom = count == 0 ? -1 : header.getShort(14);
+		long indexOffset = header.getLong(16);
+		long dataOffset = header.getLong(24);
+
+		index = channel.map(FileChannel.MapMode.READ_ONLY, start + indexOffset, (long) count * ENTRY_SIZE);
+
+		long dataSize = length - dataOffset;
+		segments = new ByteBuffer[(int) ((dataSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		for (int i = 0; i < segments.length; i++)
+		{
+			long offset = i * SEGMENT_SIZE;
+			long size = Math.min(dataSize - offset, SEGMENT_SIZE + MAX_IMAGE_SIZE);
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + dataOffset + offset, size);
+		}
+
+		id = bundleId(header, index, length);
+	}
+
+	// CRC of the header, the length and both ends of the index. Bundles
+	// differing in none of these would hold the same tiles
+	static String bundleId(ByteBuffer header, ByteBuffer index, long length)
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+
+		header.duplicate().get(buffer, 0, HEADER_SIZE);
+		crc.update(buffer, 0, HEADER_SIZE);
+
+		for (int i = 0; i < 8; i++)
+			crc.update((int) (length >>> (i * 8)));
+
+		ByteBuffer first = index.duplicate();
+		int n = Math.min(first.remaining(), buffer.length);
+		first.get(buffer, 0, n);
+		crc.update(buffer, 0, n);
+
+		ByteBuffer last = index.duplicate();
+		last.position(last.limit() - n);
+		last.get(buffer, 0, n);
+		crc.update(buffer, 0, n);
+
+		return Long.toHexString(crc.getValue());
+	}
+
+	// Maps a bundle of the APK assets where it is, without copying it.
+	// aapt compresses assets except media files (.mp3, .png...), a bundle
+	// is named like one of those to be stored uncompressed, or the build
+	// sets noCompress for its extension. Only a compressed bundle, which
+	// can't be mapped, is extracted once to the files directory
+	public static MappedTileStore openAsset(Context context, String name) throws IOException
+	{
+		AssetFileDescriptor fd;
+		try
+		{
+			fd = context.getAssets().openFd(name);
+		}
+		catch (FileNotFoundException e)
+		{
+			return new MappedTileStore(extractAsset(context, name));
+		}
+
+		// The descriptor is the whole APK, the asset starts at its offset
+		FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+		return new MappedTileStore(fd, channel, fd.getStartOffset(), fd.getLength(), name);
+	}
+
+	static String extractAsset(Context context, String name) throws IOException
+	{
+		File file = new File(context.getFilesDir(), name);
+		if (file.exists()) return file.getPath();
+
+		// Written under another name first, a half copied bundle is never used
+		File temp = new File(context.getFilesDir(), name + ".tmp");
+		InputStream in = context.getAssets().open(name);
+		try
+		{
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0)
+				{
+					out.write(buffer, 0, n);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		if (!temp.renameTo(file)) throw new IOException("Can't extract " + name);
+		return file.getPath();
+	}
+
+	// Tells whether the file at path starts like a tile bundle
+	public static boolean isBundle(String path)
+	{
+		return TileBundle.isBundle(path);
+	}
+
+	// Index of the first entry with a key >= key
+	int lowerBound(long key, int from, int to)
+	{
+		while (from < to)
+		{
+			int mid = (from + to) >>> 1;
+			if (index.getLong(mid * ENTRY_SIZE) < key) from = mid + 1;
+			else to = mid;
+		}
+		return from;
+	}
+
+	@Override
+	public void fetchTiles(TileRect rect, int zoom, TileHandler handler)
+	{
+		int maxIndex = (1 << zoom) - 1;
+		int left = Math.max(rect.left, 0), top = Math.max(rect.top, 0);
+		int right = Math.min(rect.right, maxIndex), bottom = Math.min(rect.bottom, maxIndex);
+		if (left > right || top > bottom) return;
+
+		// All the tiles of rect have keys between these two, search only there
+		int from = lowerBound(TileBundle.key(zoom, left, top), 0, count);
+		int to = lowerBound(TileBundle.key(zoom, right, bottom) + 1, from, count);
+
+		for (int x = left; x <= right; x++)
+		{
+			for (int y = top; y <= bottom; y++)
+			{
+				long key = TileBundle.key(zoom, x, y);
+				int i = lowerBound(key, from, to);
+				if (i == to || index.getLong(i * ENTRY_SIZE) != key) continue;
+
+				long offset = index.getLong(i * ENTRY_SIZE + 8);
+				int length = index.getInt(i * ENTRY_SIZE + 16);
+
+				// Identical images share their offset, with the bundle id
+				// it's as good as a hash
+				handler.onTile(x, y, "@" + id + ":" + offset, slice(offset, length));
+			}
+		}
+	}
+
+	// A view of the image bytes inside the mapping, nothing is copied
+	ByteBuffer slice(long offset, int length)
+	{
+		ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+		int position = (int) (offset % SEGMENT_SIZE);
+		segment.limit(position + length);
+		segment.position(position);
+		return segment.slice();
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	@Override
+	public int getMinZoom()
+	{
+		return minZoom;
+	}
+
+	@Override
+	public int getMaxZoom()
+	{
+		return maxZoom;
+	}
+
+	// Goes through the index entries of the zoom level, meant for catalogs
+	// not for drawing
+	@Override
+	public TileRect getExtent(int zoom)
+	{
+		int from = lowerBound(TileBundle.firstKey(zoom), 0, count);
+		int to = lowerBound(TileBundle.firstKey(zoom + 1), from, count);
+		if (from == to) return null;
+
+		TileRect extent = null;
+		for (int i = from; i < to; i++)
+		{
+			long key = index.getLong(i * ENTRY_SIZE);
+			int x = TileBundle.x(key), y = TileBundle.y(key);
+
+			if (extent == null) extent = new TileRect(x, y, x, y);
+			else extent.union(x, y);
+		}
+		return extent;
+	}
+
+	@Override
+	public boolean isWritable()
+	{
+		return false;
+	}
+
+	@Override
+	public String insertTile(int x, int y, int zoom, byte[] image)
+	{
+		throw new UnsupportedOperationException("Tile bundles are read only");
+	}
+
+	@Override
+	public void close()
+	{
+		// The mappings stay valid until garbage collected, closing the file
+		// only releases the descriptor
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
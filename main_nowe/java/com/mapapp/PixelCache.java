@@ -0,0 +1,226 @@
+package com.mapapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Disk cache of decoded tiles, so a tile seen before is loaded with a copy
+ * of its pixels instead of a PNG decode.
+ *
+ * The file is memory mapped and cut in fixed size slots, one tile each:
+ *
+ *   header  int magic "MPC1", int version, int config, int tile size,
+ *           int slot count, padded to 64 bytes
+ *   slot    int state (1 = used), byte key length, the image hash in ASCII
+ *           (SHA-1 hex, or "@id:offset" for bundle tiles), padded to 64
+ *           bytes, then the raw pixels as copyPixelsToBuffer writes them
+ *
+ * Slots are reused by the clock policy: a tile read since the hand last
+ * passed it gets a second chance. The index is rebuilt from the slot
+ * headers when the cache is opened again.
+ */
+public class PixelCache
+{
+	final static int MAGIC = 0x4D504331; // "MPC1"
+	final static int VERSION = 2;
+	final static int HEADER_SIZE = 64;
+	final static int SLOT_HEADER_SIZE = 64;
+	// Longest hash a slot header holds
+	final static int MAX_HASH_SIZE = SLOT_HEADER_SIZE - 5;
+	final static int TILE_SIZE = 256;
+
+	private final Bitmap.Config config;
+	private final int slots, pixelSize, slotSize;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+
+	// Slot of every cached image hash, and the other way around
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+	private final String[] keys;
+
+	// Set when a slot is read, cleared by the clock hand
+	private final boolean[] referenced;
+	private int hand;
+
+	// Both RGB_565 and ARGB_8888 are supported, a cache file made with a
+	// different config or slot count is emptied
+	public PixelCache(String path, int slots, Bitmap.Config config) throws IOException
+	{
+		this.config = config;
+		this.pixelSize = TILE_SIZE * TILE_SIZE * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+		this.slotSize = SLOT_HEADER_SIZE + pixelSize;
+		this.slots = Math.min(slots, (Integer.MAX_VALUE - HEADER_SIZE) / slotSize);
+		this.keys = new String[this.slots];
+		this.referenced = new boolean[this.slots];
+
+		long length = HEADER_SIZE + (long) this.slots * slotSize;
+		boolean valid;
+
+		file = new RandomAccessFile(path, "rw");
+		try
+		{
+			valid = file.length() == length;
+			file.setLength(length);
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+
+		if (valid && map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(8) == config.ordinal()
+				&& map.getInt(12) == TILE_SIZE && map.getInt(16) == this.slots) load();
+		else reset();
+	}
+
+	// Rebuilds the index from the slot headers
+	private void load()
+	{
+		char[] hash = new char[MAX_HASH_SIZE];
+		for (int i = 0; i < slots; i++)
+		{
+			int offset = HEADER_SIZE + i * slotSize;
+			if (map.getInt(offset) != 1) continue;
+
+			int length = map.get(offset + 4);
+			if (length <= 0 || length > MAX_HASH_SIZE) continue;
+
+			for (int c = 0; c < length; c++)
+			{
+				hash[c] = (char) map.get(offset + 5 + c);
+			}
+
+			keys[i] = new String(hash, 0, length);
+			index.put(keys[i], i);
+		}
+	}
+
+	private void reset()
+	{
+		for (int i = 0; i < slots; i++)
+		{
+			map.putInt(HEADER_SIZE + i * slotSize, 0);
+		}
+
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putInt(8, config.ordinal());
+		map.putInt(12, TILE_SIZE);
+		map.putInt(16, slots);
+	}
+
+	// Returns a new bitmap with the cached pixels of the image, or null
+	public synchronized Bitmap get(String hash)
+	{
+		Integer slot = index.get(hash);
+		if (slot == null) return null;
+
+		referenced[slot] = true;
+
+		Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, config);
+		bitmap.copyPixelsFromBuffer(pixels(slot));
+		return bitmap;
+	}
+
+	// Stores the pixels of a decoded image, tiles of another size or that
+	// need alpha the cache config doesn't have are left out
+	public synchronized void put(String hash, Bitmap bitmap)
+	{
+		if (!isStorable(hash) || index.containsKey(hash)) return;
+		if (bitmap.getWidth() != TILE_SIZE || bitmap.getHeight() != TILE_SIZE) return;
+
+		if (bitmap.getConfig() != config)
+		{
+			if (config == Bitmap.Config.RGB_565 && bitmap.hasAlpha()) return;
+
+			bitmap = bitmap.copy(config, false);
+			if (bitmap == null) return;
+		}
+
+		int slot = nextSlot();
+		int offset = HEADER_SIZE + slot * slotSize;
+
+		// Marked unused until the pixels are complete
+		map.putInt(offset, 0);
+		bitmap.copyPixelsToBuffer(pixels(slot));
+
+		map.put(offset + 4, (byte) hash.length());
+		for (int c = 0; c < hash.length(); c++)
+		{
+			map.put(offset + 5 + c, (byte) hash.charAt(c));
+		}
+		map.putInt(offset, 1);
+
+		keys[slot] = hash;
+		referenced[slot] = false;
+		index.put(hash, slot);
+	}
+
+	// Hashes are ASCII and short enough for a slot header
+	static boolean isStorable(String hash)
+	{
+		if (hash.length() == 0 || hash.length() > MAX_HASH_SIZE) return false;
+		for (int c = 0; c < hash.length(); c++)
+		{
+			if (hash.charAt(c) > 127) return false;
+		}
+		return true;
+	}
+
+	// Free slot or the first one the clock hand finds unreferenced
+	private int nextSlot()
+	{
+		while (true)
+		{
+			int slot = hand;
+			hand = (hand + 1) % slots;
+
+			if (keys[slot] == null) return slot;
+
+			if (referenced[slot])
+			{
+				referenced[slot] = false;
+				continue;
+			}
+
+			index.remove(keys[slot]);
+			keys[slot] = null;
+			return slot;
+		}
+	}
+
+	private ByteBuffer pixels(int slot)
+	{
+		ByteBuffer b = map.duplicate();
+		int offset = HEADER_SIZE + slot * slotSize + SLOT_HEADER_SIZE;
+		b.limit(offset + pixelSize);
+		b.position(offset);
+		return b;
+	}
+
+	public synchronized int size()
+	{
+		return index.size();
+	}
+
+	public synchronized void close()
+	{
+		map.force();
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			// Everything is already written
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * MapApp : Simple offline map application, made by Hisham Ghosheh for tutorial purposes only
+ * Tutorial on my blog
+ * http://ghoshehsoft.wordpress.com/2012/03/09/building-a-map-app-for-android/
+ * 
+ * Class tutorial:
+ * http://ghoshehsoft.wordpress.com/2012/03/23/mapapp4-tilesprovider/
+ */
+
+package com.mapapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.mapapp.core.PointD;
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileRect;
+import com.mapapp.core.TilesManager;
+
+// The sqlitedb tile store, tiles(x, y, z, s, image, hash) with z = 17 - zoom
+public class SQLiteTileStore implements TileStore
+{
+	// The database that holds the map
+	protected SQLiteDatabase tilesDB;
+
+	// Keeps the database under its quota, null when there is no quota.
+	// setQuota replaces it while tiles are read and inserted
+	protected volatile TileEvictor evictor;
+
+	// Map packs are only read, their schema is left as it is
+	protected final boolean readOnly;
+
+	// The query of fetchTiles up to the WHERE, depends on the schema
+	protected final String selectTiles;
+
+	public SQLiteTileStore(String dbPath)
+	{
+		// This time we are opening the database as read\write, a missing
+		// database is created, e.g. the one receiving downloaded tiles
+		tilesDB = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+		readOnly = false;
+
+		// Make sure the database can hold deduplicated images
+		prepareDB(tilesDB);
+		selectTiles = selectTiles(true, true);
+	}
+
+	private SQLiteTileStore(SQLiteDatabase tilesDB)
+	{
+		this.tilesDB = tilesDB;
+		readOnly = true;
+
+		HashSet<String> columns = columns(tilesDB, "tiles");
+		if (columns.isEmpty())
+		{
+			tilesDB.close();
+			throw new IllegalStateException("No tiles table");
+		}
+
+		// Older packs have neither the hash column nor the images table
+		boolean hash = columns.contains("hash");
+		selectTiles = selectTiles(hash, hash && !columns(tilesDB, "images").isEmpty());
+	}
+
+	// Opens a map pack to read it, without changing the file: no table or
+	// column is added, tiles can't be inserted
+	public static SQLiteTileStore openReadOnly(String dbPath)
+	{
+		return new SQLiteTileStore(SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READONLY));
+	}
+
+	// x, y, hash and image of the tiles. The image comes either from the
+	// shared images table or from the tile row itself (old layout)
+	static String selectTiles(boolean hashColumn, boolean imagesTable)
+	{
+		if (imagesTable) return "SELECT t.x,t.y,t.hash,COALESCE(i.image,t.image) FROM tiles t LEFT JOIN images i ON i.hash = t.hash";
+		if (hashColumn) return "SELECT t.x,t.y,t.hash,t.image FROM tiles t";
+		return "SELECT t.x,t.y,NULL,t.image FROM tiles t";
+	}
+
+	// Column names of the table, empty if there is no such table
+	static HashSet<String> columns(SQLiteDatabase tilesDB, String table)
+	{
+		HashSet<String> columns = new HashSet<String>();
+		Cursor cursor = tilesDB.rawQuery("PRAGMA table_info(" + table + ")", null);
+		try
+		{
+			// Column 1 of table_info is the column name
+			while (cursor.moveToNext())
+			{
+				columns.add(cursor.getString(1));
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+		return columns;
+	}
+
+	/*
+	 * Images are kept in a separate table "images" indexed by their content
+	 * hash, the tiles table only references them by the "hash" column.
+	 * Old databases store the image in tiles.image directly, both layouts
+	 * can live in the same database, new tiles are written the new way.
+	 *
+	 * Downloaded tiles are marked by "downloaded" and "accessed" holds the
+	 * last time they were drawn, used to evict the oldest ones when the
+	 * database is over its quota. Regions listed in "pins" are never evicted.
+	 */
+	static void prepareDB(SQLiteDatabase tilesDB)
+	{
+		tilesDB.execSQL("CREATE TABLE IF NOT EXISTS tiles (x int, y int, z int, s int, image blob, hash TEXT, PRIMARY KEY (x,y,z,s))");
+		tilesDB.execSQL("CREATE TABLE IF NOT EXISTS images (hash TEXT PRIMARY KEY, image BLOB)");
+		tilesDB.execSQL("CREATE TABLE IF NOT EXISTS pins (z int, minx int, miny int, maxx int, maxy int)");
+
+		// Check which of the newer columns the tiles table already has
+		HashSet<String> columns = columns(tilesDB, "tiles");
+
+		if (!columns.contains("hash")) tilesDB.execSQL("ALTER TABLE tiles ADD COLUMN hash TEXT");
+		if (!columns.contains("downloaded")) tilesDB.execSQL("ALTER TABLE tiles ADD COLUMN downloaded INTEGER");
+		if (!columns.contains("accessed")) tilesDB.execSQL("ALTER TABLE tiles ADD COLUMN accessed INTEGER");
+	}
+
+	// Limits the size of the database to quota bytes, the least recently
+	// drawn downloaded tiles are deleted in the background to stay below it.
+	public void setQuota(long quota)
+	{
+		// The new one is in place first, readers still holding the old one
+		// have their calls ignored once it's closed
+		TileEvictor old;
+		synchronized (this)
+		{
+			old = evictor;
+			evictor = quota > 0 ? new TileEvictor(tilesDB, quota) : null;
+		}
+		if (old != null) old.close();
+	}
+
+	// Keeps the tiles of the region from being evicted, for offline use
+	public void pinRegion(double west, double north, double east, double south, int minZoom, int maxZoom)
+	{
+		tilesDB.beginTransaction();
+		try
+		{
+			for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+			{
+				TileRect r = regionTiles(west, north, east, south, zoom);
+				tilesDB.execSQL("INSERT INTO pins VALUES (?,?,?,?,?)", new Object[] { 17 - zoom, r.left, r.top, r.right, r.bottom });
+			}
+			tilesDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			tilesDB.endTransaction();
+		}
+	}
+
+	// Undoes pinRegion called with the same values
+	public void unpinRegion(double west, double north, double east, double south, int minZoom, int maxZoom)
+	{
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+		{
+			TileRect r = regionTiles(west, north, east, south, zoom);
+			tilesDB.execSQL("DELETE FROM pins WHERE z = ? AND minx = ? AND miny = ? AND maxx = ? AND maxy = ?", new Object[] { 17 - zoom,
+					r.left, r.top, r.right, r.bottom });
+		}
+	}
+
+	// Indices of the tiles of a region at a zoom level
+	static TileRect regionTiles(double west, double north, double east, double south, int zoom)
+	{
+		int maxIndex = (1 << zoom) - 1;
+		PointD topLeft = TilesManager.calcRatio(west, north);
+		PointD bottomRight = TilesManager.calcRatio(east, south);
+
+		return new TileRect(Math.max((int) (topLeft.x * (maxIndex + 1)), 0), Math.max((int) (topLeft.y * (maxIndex + 1)), 0), Math.min(
+				(int) (bottomRight.x * (maxIndex + 1)), maxIndex), Math.min((int) (bottomRight.y * (maxIndex + 1)), maxIndex));
+	}
+
+	@Override
+	public void fetchTiles(TileRect rect, int zoom, TileHandler handler)
+	{
+		// Perpare the query for the database
+		String query = selectTiles + " WHERE t.x >= " + rect.left + " AND t.x <= " + rect.right + " AND t.y >= " + rect.top + " AND t.y <=" + rect.bottom + " AND t.z == "
+				+ (17 - zoom);
+
+		// query should be something like:
+		// SELECT x,y,image FROM tiles WHERE x>=0 AND x<=4 AND y>=2 AND
+		// y<=6
+		// AND
+		// z==6
+
+		Cursor cursor;
+		cursor = tilesDB.rawQuery(query, null);
+
+		// The evictor of the whole read, setQuota may replace it meanwhile
+		TileEvictor evictor = this.evictor;
+
+		// Now cursor contains a table with these columns
+		/*
+		 * x(int)	y(int)	hash(String)	image(byte[])
+		 */
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				// Get the binary image data from the fourth cursor column
+				byte[] img = cursor.getBlob(3);
+
+				// Tiles stored the old way have no hash yet, hashing
+				// is still much cheaper than decoding a bitmap
+				String hash = cursor.isNull(2) ? TileHash.hash(img) : cursor.getString(2);
+
+				int x = cursor.getInt(0), y = cursor.getInt(1);
+
+				// Only remembered in memory, written later in one go
+				if (evictor != null) evictor.touch(x, y, zoom);
+
+				handler.onTile(x, y, hash, ByteBuffer.wrap(img));
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public int getMinZoom()
+	{
+		// Smallest zoom is the biggest z
+		return 17 - (int) queryLong("SELECT MAX(z) FROM tiles", 18);
+	}
+
+	@Override
+	public int getMaxZoom()
+	{
+		return 17 - (int) queryLong("SELECT MIN(z) FROM tiles", 18);
+	}
+
+	@Override
+	public TileRect getExtent(int zoom)
+	{
+		Cursor cursor = tilesDB.rawQuery("SELECT MIN(x),MIN(y),MAX(x),MAX(y) FROM tiles WHERE z == " + (17 - zoom), null);
+		try
+		{
+			if (!cursor.moveToFirst() || cursor.isNull(0)) return null;
+
+			return new TileRect(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3));
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	// First column of the first row, or empty if there is none or it's null
+	long queryLong(String query, long empty)
+	{
+		Cursor cursor = tilesDB.rawQuery(query, null);
+		try
+		{
+			if (!cursor.moveToFirst() || cursor.isNull(0)) return empty;
+
+			return cursor.getLong(0);
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public boolean isWritable()
+	{
+		return !readOnly;
+	}
+
+	// Marked as synchronized to prevent to insert operations at the same time
+	// Returns the hash the image was stored under
+	@Override
+	public synchronized String insertTile(int x, int y, int zoom, byte[] tile)
+	{
+		if (readOnly) throw new UnsupportedOperationException("Map packs are read only");
+
+		String hash = TileHash.hash(tile);
+
+		tilesDB.beginTransaction();
+		try
+		{
+			// The image is stored only if no identical image exists yet
+			ContentValues img = new ContentValues();
+			img.put("hash", hash);
+			img.put("image", tile);
+			tilesDB.insertWithOnConflict("images", null, img, SQLiteDatabase.CONFLICT_IGNORE);
+
+			// The tile itself only references the image
+			ContentValues vals = new ContentValues();
+			vals.put("x", x);
+			vals.put("y", y);
+			vals.put("z", 17 - zoom);
+			vals.put("hash", hash);
+			vals.put("downloaded", 1);
+			vals.put("accessed", TileEvictor.now());
+			tilesDB.insert("tiles", null, vals);
+
+			tilesDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			tilesDB.endTransaction();
+		}
+
+		TileEvictor evictor = this.evictor;
+		if (evictor != null) evictor.onInsert();
+
+		return hash;
+	}
+
+	// Refreshes the store with a delta package, see TileDelta. The map stays
+	// usable meanwhile: in WAL mode reading doesn't wait for the transaction.
+	// Map packs are updated through ShardedTileStore.applyDelta
+	public synchronized TileDelta applyDelta(InputStream in) throws IOException
+	{
+		if (readOnly) throw new UnsupportedOperationException("Map packs are read only");
+
+		tilesDB.enableWriteAheadLogging();
+
+		TileDelta delta = new TileDelta();
+		delta.apply(tilesDB, in);
+		return delta;
+	}
+
+	@Override
+	public void close()
+	{
+		// Pending access times are written before closing
+		TileEvictor evictor = this.evictor;
+		if (evictor != null) evictor.close();
+
+		// If fetchTiles is used after closing it will not work, it will throw
+		// an exception
+		tilesDB.close();
+	}
+}
@@ -0,0 +1,396 @@
+package com.mapapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mapapp.core.TileRect;
+
+/**
+ * Several map packs seen as one store.
+ * Each query only goes to the packs whose bounding box and zoom range match
+ * it, packs are opened the first time they are needed and closed again
+ * when they weren't used for a while. When several packs match they are
+ * read in parallel, their tiles are then passed on from the calling thread
+ * in a fixed order: the most detailed pack (highest max zoom) last so it
+ * is drawn over the others, by path between packs of the same detail.
+ * Packs are only read, their files aren't changed except by applyDelta.
+ * Downloaded tiles go to a separate database that is always queried.
+ * A base layer (the world map of the APK) is always queried first, so
+ * every other pack and the downloaded tiles are drawn over it.
+ */
+public class ShardedTileStore implements TileStore
+{
+	private final static String TAG = "ShardedTileStore";
+
+	// Packs not used for this long are closed
+	public final static long IDLE_TIMEOUT = 60 * 1000;
+
+	class Shard
+	{
+		final TileCatalog.Entry entry;
+		TileStore store;
+		long lastUsed;
+		int users;
+		boolean retired;
+
+		// Set when the pack can't be read, it's then left out
+		volatile boolean broken;
+
+		Shard(TileCatalog.Entry entry)
+		{
+			this.entry = entry;
+		}
+
+		synchronized TileStore acquire()
+		{
+			if (store == null) store = TilesProvider.openPack(entry.path);
+			users++;
+			return store;
+		}
+
+		synchronized void release()
+		{
+			users--;
+			lastUsed = SystemClock.uptimeMillis();
+			if (retired && users == 0) close();
+		}
+
+		// Replaced by a shard of the updated pack, closed once the fetches
+		// still reading it are done
+		synchronized void retire()
+		{
+			retired = true;
+			if (users == 0) close();
+		}
+
+		synchronized void closeIfIdle(long now)
+		{
+			if (store != null && users == 0 && now - lastUsed > IDLE_TIMEOUT)
+			{
+				store.close();
+				store = null;
+			}
+		}
+
+		synchronized void close()
+		{
+			if (store != null) store.close();
+			store = null;
+		}
+
+		boolean overlaps(TileRect rect, int zoom)
+		{
+			if (broken || zoom < entry.minZoom || zoom > entry.maxZoom) return false;
+
+			return entry.extent(zoom).intersects(rect);
+		}
+	}
+
+	// Sorted in the order tiles are passed on, replaced not changed so
+	// fetches going on keep the list they started with
+	private volatile List<Shard> shards;
+
+	private final TileCatalog catalog;
+
+	// Receives the downloaded tiles, may be null
+	private final TileStore downloads;
+
+	// Under all the other tiles, may be null
+	private final TileStore base;
+
+	private final ExecutorService pool;
+
+	public ShardedTileStore(TileCatalog catalog, TileStore downloads)
+	{
+		this(catalog, null, downloads);
+	}
+
+	public ShardedTileStore(TileCatalog catalog, TileStore base, TileStore downloads)
+	{
+		List<Shard> shards = new ArrayList<Shard>();
+		for (TileCatalog.Entry e : catalog.getEntries())
+			shards.add(new Shard(e));
+		sort(shards);
+
+		this.shards = shards;
+		this.catalog = catalog;
+		this.downloads = downloads;
+		this.base = base;
+
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	// All the packs of dir, downloaded tiles go to downloadsPath which is
+	// kept under downloadsQuota bytes (0 for no limit)
+	public static ShardedTileStore open(String dir, String downloadsPath, long downloadsQuota)
+	{
+		return open(null, dir, downloadsPath, downloadsQuota);
+	}
+
+	// Same with a base layer under the packs, may be null
+	public static ShardedTileStore open(TileStore base, String dir, String downloadsPath, long downloadsQuota)
+	{
+		// On first launch there is no directory yet to create downloads in
+		new File(dir).mkdirs();
+
+		TileCatalog catalog = TileCatalog.load(new File(dir), new File(downloadsPath).getAbsolutePath());
+
+		SQLiteTileStore downloads = new SQLiteTileStore(downloadsPath);
+		downloads.setQuota(downloadsQuota);
+
+		return new ShardedTileStore(catalog, base, downloads);
+	}
+
+	// The order tiles are passed on, the last one wins
+	static void sort(List<Shard> shards)
+	{
+		Collections.sort(shards, new Comparator<Shard>()
+		{
+			@Override
+			public int compare(Shard a, Shard b)
+			{
+				if (a.entry.maxZoom != b.entry.maxZoom) return a.entry.maxZoom < b.entry.maxZoom ? -1 : 1;
+				return a.entry.path.compareTo(b.entry.path);
+			}
+		});
+	}
+
+	// Updates the sqlitedb pack at path with a delta package, see TileDelta.
+	// The map keeps drawing meanwhile: the delta goes through a connection of
+	// its own with the pack in WAL mode, the fetches read the old tiles until
+	// it's committed. The pack then gets a new shard, opened again with its
+	// new schema, and its catalog entry is updated with its new zooms and box
+	public synchronized TileDelta applyDelta(String path, InputStream in) throws IOException
+	{
+		Shard shard = null;
+		for (Shard s : shards)
+		{
+			if (s.entry.path.equals(new File(path).getAbsolutePath())) shard = s;
+		}
+		if (shard == null) throw new IOException("Not a map pack of the store: " + path);
+		if (MappedTileStore.isBundle(path)) throw new IOException("Tile bundles can't be updated, only replaced: " + path);
+
+		SQLiteTileStore writer = new SQLiteTileStore(path);
+		TileDelta delta;
+		try
+		{
+			delta = writer.applyDelta(in);
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		List<Shard> updated = new ArrayList<Shard>(shards);
+		updated.remove(shard);
+		TileCatalog.Entry entry = catalog.refresh(shard.entry.path);
+		if (entry != null) updated.add(new Shard(entry));
+		sort(updated);
+		shards = updated;
+
+		shard.retire();
+		return delta;
+	}
+
+	@Override
+	public void fetchTiles(final TileRect rect, final int zoom, final TileHandler handler)
+	{
+		List<Shard> shards = this.shards;
+
+		// The tiles of the base layer are replaced by any other one
+		if (base != null) base.fetchTiles(rect, zoom, handler);
+
+		List<Shard> matching = new ArrayList<Shard>();
+		for (Shard s : shards)
+		{
+			if (s.overlaps(rect, zoom)) matching.add(s);
+		}
+
+		// Usually a single pack matches, no need for other threads then
+		if (matching.size() == 1)
+		{
+			fetchTiles(matching.get(0), rect, zoom, handler);
+		}
+		else if (matching.size() > 1)
+		{
+			// Each pack is read into its own list, the lists are passed on
+			// in the order of the packs whatever pack finishes first
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			List<List<BufferedTile>> buffers = new ArrayList<List<BufferedTile>>();
+			for (final Shard s : matching)
+			{
+				final List<BufferedTile> buffer = new ArrayList<BufferedTile>();
+				buffers.add(buffer);
+				results.add(pool.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						fetchTiles(s, rect, zoom, new TileHandler()
+						{
+							@Override
+							public void onTile(int x, int y, String hash, ByteBuffer image)
+							{
+								buffer.add(new BufferedTile(x, y, hash, image));
+							}
+						});
+					}
+				}));
+			}
+
+			for (int i = 0; i < results.size(); i++)
+			{
+				try
+				{
+					// Future.get makes the list written by the pool visible
+					results.get(i).get();
+					for (BufferedTile t : buffers.get(i))
+						handler.onTile(t.x, t.y, t.hash, ByteBuffer.wrap(t.image));
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException e)
+				{
+					// Errors of the pack are caught by fetchTiles, anything
+					// else is a bug
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+
+		// Downloaded tiles come last, they are the most recent ones
+		if (downloads != null) downloads.fetchTiles(rect, zoom, handler);
+
+		long now = SystemClock.uptimeMillis();
+		for (Shard s : shards)
+			s.closeIfIdle(now);
+	}
+
+	// A tile read by a pool thread, the image copied out of the store since
+	// its buffer is only valid during onTile
+	static class BufferedTile
+	{
+		final int x, y;
+		final String hash;
+		final byte[] image;
+
+		BufferedTile(int x, int y, String hash, ByteBuffer image)
+		{
+			this.x = x;
+			this.y = y;
+			this.hash = hash;
+			this.image = new byte[image.remaining()];
+			image.duplicate().get(this.image);
+		}
+	}
+
+	// A pack that fails to open or to be read is logged and left out from
+	// then on, the other packs are still drawn
+	void fetchTiles(Shard s, TileRect rect, int zoom, TileHandler handler)
+	{
+		TileStore store;
+		try
+		{
+			store = s.acquire();
+		}
+		catch (RuntimeException e)
+		{
+			Log.w(TAG, "Can't open " + s.entry.path + ", skipped", e);
+			s.broken = true;
+			return;
+		}
+
+		try
+		{
+			store.fetchTiles(rect, zoom, handler);
+		}
+		catch (RuntimeException e)
+		{
+			Log.w(TAG, "Can't read " + s.entry.path + ", skipped", e);
+			s.broken = true;
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	@Override
+	public int getMinZoom()
+	{
+		int min = downloads != null ? downloads.getMinZoom() : -1;
+		if (base != null && (min < 0 || base.getMinZoom() >= 0 && base.getMinZoom() < min)) min = base.getMinZoom();
+		for (Shard s : shards)
+		{
+			if (min < 0 || s.entry.minZoom < min) min = s.entry.minZoom;
+		}
+		return min;
+	}
+
+	@Override
+	public int getMaxZoom()
+	{
+		int max = downloads != null ? downloads.getMaxZoom() : -1;
+		if (base != null) max = Math.max(max, base.getMaxZoom());
+		for (Shard s : shards)
+			max = Math.max(max, s.entry.maxZoom);
+		return max;
+	}
+
+	@Override
+	public TileRect getExtent(int zoom)
+	{
+		TileRect extent = downloads != null ? downloads.getExtent(zoom) : null;
+		TileRect baseExtent = base != null ? base.getExtent(zoom) : null;
+		if (extent == null) extent = baseExtent;
+		else if (baseExtent != null) extent.union(baseExtent);
+
+		for (Shard s : shards)
+		{
+			if (zoom < s.entry.minZoom || zoom > s.entry.maxZoom) continue;
+
+			TileRect r = s.entry.extent(zoom);
+			if (extent == null) extent = r;
+			else extent.union(r);
+		}
+		return extent;
+	}
+
+	@Override
+	public boolean isWritable()
+	{
+		return downloads != null && downloads.isWritable();
+	}
+
+	@Override
+	public String insertTile(int x, int y, int zoom, byte[] image)
+	{
+		return downloads.insertTile(x, y, zoom, image);
+	}
+
+	@Override
+	public void close()
+	{
+		pool.shutdown();
+		for (Shard s : shards)
+			s.close();
+		if (downloads != null) downloads.close();
+		if (base != null) base.close();
+	}
+}
@@ -18,10 +18,19 @@ public class Tile
 	public int y;
 	public Bitmap img;
 
+	// Content hash of the image, tiles with the same hash share one bitmap
+	public String hash;
+
 	public Tile(int x, int y, Bitmap img)
+	{
+		this(x, y, img, null);
+	}
+
+	public Tile(int x, int y, Bitmap img, String hash)
 	{
 		this.x = x;
 		this.y = y;
 		this.img = img;
+		this.hash = hash;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+package com.mapapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.Log;
+
+import com.mapapp.core.PointD;
+import com.mapapp.core.TileRect;
+import com.mapapp.core.TilesManager;
+
+/**
+ * The list of map packs (sqlitedb files and tile bundles) of a directory
+ * with their zoom range and bounding box.
+ * The catalog is saved next to the packs, a pack is only opened again when
+ * its size or date changed, so startup doesn't depend on how many packs
+ * are installed.
+ */
+public class TileCatalog
+{
+	private final static String TAG = "TileCatalog";
+
+	public final static String FILE_NAME = "catalog.txt";
+
+	// First line of the file, a catalog of another format is made again
+	final static String HEADER = "# catalog 2\tpath\tmodified\tlength\tminZoom\tmaxZoom\twest\tsouth\teast\tnorth";
+
+	public static class Entry
+	{
+		public String path;
+		public long modified, length;
+		public int minZoom, maxZoom;
+
+		// Bounding box in degrees of the tiles of all the zooms, the lower
+		// zooms of a pack may cover more than its deepest one
+		public double west, south, east, north;
+
+		// Tile indices covered at the zoom level, computed from the bounding box
+		public TileRect extent(int zoom)
+		{
+			int mapSize = 1 << zoom;
+			PointD topLeft = TilesManager.calcRatio(west, north);
+			PointD bottomRight = TilesManager.calcRatio(east, south);
+
+			// Edges of the box lie on tile borders, pull them in a little so
+			// the neighbor tiles aren't counted
+			return new TileRect((int) (topLeft.x * mapSize + 1e-6), (int) (topLeft.y * mapSize + 1e-6), (int) (bottomRight.x * mapSize - 1e-6),
+					(int) (bottomRight.y * mapSize - 1e-6));
+		}
+
+		String format()
+		{
+			return path + "\t" + modified + "\t" + length + "\t" + minZoom + "\t" + maxZoom + "\t" + west + "\t" + south + "\t" + east + "\t"
+					+ north;
+		}
+
+		static Entry parse(String line)
+		{
+			String[] f = line.split("\t");
+			Entry e = new Entry();
+			e.path = f[0];
+			e.modified = Long.parseLong(f[1]);
+			e.length = Long.parseLong(f[2]);
+			e.minZoom = Integer.parseInt(f[3]);
+			e.maxZoom = Integer.parseInt(f[4]);
+			e.west = Double.parseDouble(f[5]);
+			e.south = Double.parseDouble(f[6]);
+			e.east = Double.parseDouble(f[7]);
+			e.north = Double.parseDouble(f[8]);
+			return e;
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	// Where the catalog is saved
+	private File file;
+
+	public synchronized List<Entry> getEntries()
+	{
+		return new ArrayList<Entry>(entries);
+	}
+
+	// Scans a pack again after it was changed in place, e.g. by a delta, and
+	// saves the catalog. Returns its new entry, null if it can't be read
+	public synchronized Entry refresh(String path)
+	{
+		for (int i = 0; i < entries.size(); i++)
+		{
+			if (entries.get(i).path.equals(path)) entries.remove(i--);
+		}
+
+		Entry e = scan(new File(path));
+		if (e != null) entries.add(e);
+
+		if (file != null) write(file);
+		return e;
+	}
+
+	// Loads the catalog of dir, packs that are new or changed are opened to
+	// update it. exclude is left out, e.g. the database receiving downloads.
+	public static TileCatalog load(File dir, String exclude)
+	{
+		File catalogFile = new File(dir, FILE_NAME);
+		HashMap<String, Entry> saved = read(catalogFile);
+
+		TileCatalog catalog = new TileCatalog();
+		catalog.file = catalogFile;
+		boolean changed = false;
+
+		File[] files = dir.listFiles();
+		if (files == null) files = new File[0];
+
+		for (File f : files)
+		{
+			String path = f.getAbsolutePath();
+			if (!f.isFile() || path.equals(exclude)) continue;
+			if (!f.getName().endsWith(".sqlitedb") && !f.getName().endsWith(".bundle")) continue;
+
+			Entry e = saved.remove(path);
+			if (e == null || e.modified != f.lastModified() || e.length != f.length())
+			{
+				e = scan(f);
+				changed = true;
+			}
+			if (e != null) catalog.entries.add(e);
+		}
+
+		// Packs that were removed also change the catalog
+		if (changed || !saved.isEmpty()) catalog.write(catalogFile);
+
+		return catalog;
+	}
+
+	static HashMap<String, Entry> read(File catalogFile)
+	{
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		if (!catalogFile.exists()) return entries;
+
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(catalogFile));
+			try
+			{
+				// Written by an older version, its boxes may be too small
+				String line = reader.readLine();
+				if (line == null || !line.equals(HEADER)) return entries;
+
+				while ((line = reader.readLine()) != null)
+				{
+					if (line.length() == 0 || line.startsWith("#")) continue;
+
+					Entry e = Entry.parse(line);
+					entries.put(e.path, e);
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (Exception e)
+		{
+			// A broken catalog is simply rebuilt
+			Log.w(TAG, "Can't read " + catalogFile, e);
+			entries.clear();
+		}
+
+		return entries;
+	}
+
+	void write(File catalogFile)
+	{
+		try
+		{
+			FileWriter writer = new FileWriter(catalogFile);
+			try
+			{
+				writer.write(HEADER + "\n");
+				for (Entry e : entries)
+					writer.write(e.format() + "\n");
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// Not fatal, the packs will be scanned again next time
+			Log.w(TAG, "Can't write " + catalogFile, e);
+		}
+	}
+
+	// Opens a pack once to find its zoom range and bounding box
+	static Entry scan(File f)
+	{
+		TileStore store;
+		try
+		{
+			store = TilesProvider.openPack(f.getAbsolutePath());
+		}
+		catch (RuntimeException e)
+		{
+			Log.w(TAG, "Skipping " + f, e);
+			return null;
+		}
+
+		try
+		{
+			Entry e = new Entry();
+			e.path = f.getAbsolutePath();
+			e.modified = f.lastModified();
+			e.length = f.length();
+			e.minZoom = store.getMinZoom();
+			e.maxZoom = store.getMaxZoom();
+
+			// Union of the boxes of every zoom, e.g. a city pack may carry
+			// the whole country at its lower zooms
+			boolean any = false;
+			for (int zoom = e.minZoom; zoom >= 0 && zoom <= e.maxZoom; zoom++)
+			{
+				TileRect extent = store.getExtent(zoom);
+				if (extent == null) continue;
+
+				double west = TilesManager.tileToLongitude(extent.left, zoom);
+				double north = TilesManager.tileToLatitude(extent.top, zoom);
+				double east = TilesManager.tileToLongitude(extent.right + 1, zoom);
+				double south = TilesManager.tileToLatitude(extent.bottom + 1, zoom);
+
+				e.west = any ? Math.min(e.west, west) : west;
+				e.north = any ? Math.max(e.north, north) : north;
+				e.east = any ? Math.max(e.east, east) : east;
+				e.south = any ? Math.min(e.south, south) : south;
+				any = true;
+			}
+			return any ? e : null;
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+}
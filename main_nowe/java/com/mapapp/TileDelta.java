@@ -0,0 +1,121 @@
+package com.mapapp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileDeltaFormat;
+import com.mapapp.core.TileHash;
+
+/**
+ * Applies a delta package, the tiles that changed between two versions of a
+ * map pack, made by "TileStoreTool delta", see TileDeltaFormat.
+ * The whole delta is one transaction: a delta cut by a failed download or
+ * not made for this version of the database leaves it untouched.
+ */
+public class TileDelta
+{
+	// Counts of the applied delta
+	public int tiles, deleted, images;
+
+	// Called with the database open in WAL mode, readers use their own
+	// connection and keep seeing the old version until the commit. The
+	// database has the columns of SQLiteTileStore.prepareDB
+	void apply(SQLiteDatabase tilesDB, InputStream stream) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		if (in.readInt() != TileDeltaFormat.MAGIC) throw new IOException("Not a tile delta");
+		if (in.readInt() != TileDeltaFormat.VERSION) throw new IOException("Unsupported tile delta version");
+
+		// Images of the delta or already checked, no need to look them up
+		HashSet<String> present = new HashSet<String>();
+
+		SQLiteStatement insertImage = tilesDB.compileStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+		SQLiteStatement hasImage = tilesDB.compileStatement("SELECT COUNT(*) FROM images WHERE hash = ?");
+		SQLiteStatement deleteTile = tilesDB.compileStatement("DELETE FROM tiles WHERE x = ? AND y = ? AND z = ?");
+		// Tiles of the pack, not downloaded ones: never evicted, stored now
+		SQLiteStatement insertTile = tilesDB.compileStatement("INSERT INTO tiles (x, y, z, s, hash, downloaded, accessed)"
+				+ " VALUES (?, ?, ?, 0, ?, 0, ?)");
+		long now = TileEvictor.now();
+
+		tilesDB.beginTransactionNonExclusive();
+		try
+		{
+			int type;
+			while ((type = in.readByte()) != TileDeltaFormat.END)
+			{
+				if (type == TileDeltaFormat.IMAGE)
+				{
+					String hash = in.readUTF();
+					byte[] image = new byte[in.readInt()];
+					in.readFully(image);
+					if (!TileHash.hash(image).equals(hash)) throw new IOException("Corrupt image " + hash);
+
+					insertImage.bindString(1, hash);
+					insertImage.bindBlob(2, image);
+					insertImage.executeInsert();
+					present.add(hash);
+					images++;
+				}
+				else if (type == TileDeltaFormat.TILE || type == TileDeltaFormat.DELETE)
+				{
+					long key = in.readLong();
+					int z = 17 - TileBundle.zoom(key), x = TileBundle.x(key), y = TileBundle.y(key);
+
+					deleteTile.bindLong(1, x);
+					deleteTile.bindLong(2, y);
+					deleteTile.bindLong(3, z);
+					deleteTile.executeUpdateDelete();
+
+					if (type == TileDeltaFormat.DELETE)
+					{
+						deleted++;
+						continue;
+					}
+
+					String hash = in.readUTF();
+					if (!present.contains(hash))
+					{
+						hasImage.bindString(1, hash);
+						if (hasImage.simpleQueryForLong() == 0) throw new IOException("Delta doesn't match the database, missing image " + hash);
+						present.add(hash);
+					}
+
+					insertTile.bindLong(1, x);
+					insertTile.bindLong(2, y);
+					insertTile.bindLong(3, z);
+					insertTile.bindString(4, hash);
+					insertTile.bindLong(5, now);
+					insertTile.executeInsert();
+					tiles++;
+				}
+				else
+				{
+					throw new IOException("Corrupt tile delta");
+				}
+			}
+
+			if (in.readInt() != tiles + deleted) throw new IOException("Corrupt tile delta");
+
+			// Images no tile uses anymore
+			tilesDB.execSQL("DELETE FROM images WHERE hash NOT IN (SELECT hash FROM tiles WHERE hash IS NOT NULL)");
+
+			tilesDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			tilesDB.endTransaction();
+
+			insertImage.close();
+			hasImage.close();
+			deleteTile.close();
+			insertTile.close();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.mapapp;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Keeps a tiles database under a size quota by deleting the downloaded
+ * tiles that were drawn the longest time ago.
+ * Access times are only kept in memory when tiles are drawn and written in
+ * one transaction once enough of them piled up, so drawing never waits for
+ * a write. Eviction and writes run on a single background thread.
+ */
+public class TileEvictor
+{
+	private final static String TAG = "TileEvictor";
+
+	// Access times are written once this many tiles were touched
+	private final static int FLUSH_SIZE = 256;
+
+	// The quota is checked every this many inserted tiles
+	private final static int CHECK_EVERY = 32;
+
+	// Tiles deleted per transaction
+	private final static int EVICT_BATCH = 100;
+
+	private final SQLiteDatabase db;
+	private final long quota;
+
+	// Last access time of tiles, the key packs zoom, x and y
+	private Hashtable<Long, Long> accesses = new Hashtable<Long, Long>();
+
+	private int inserts;
+
+	// Set by close, the calls after it are ignored. Readers may still hold
+	// an evictor SQLiteTileStore.setQuota replaced
+	private boolean closed;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final Runnable flushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	private final Runnable evictTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+			evict();
+		}
+	};
+
+	public TileEvictor(SQLiteDatabase db, long quota)
+	{
+		this.db = db;
+		this.quota = quota;
+
+		// The oldest downloaded tiles are looked up by this index
+		db.execSQL("CREATE INDEX IF NOT EXISTS tiles_accessed ON tiles (downloaded, accessed)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS tiles_hash ON tiles (hash)");
+
+		// The database may be over quota already, e.g. after lowering it
+		executor.execute(evictTask);
+	}
+
+	// Access times are in seconds, finer isn't needed to find old tiles
+	static long now()
+	{
+		return System.currentTimeMillis() / 1000;
+	}
+
+	static long pack(int x, int y, int zoom)
+	{
+		return ((long) zoom << 58) | ((long) x << 29) | y;
+	}
+
+	public synchronized void touch(int x, int y, int zoom)
+	{
+		if (closed) return;
+
+		accesses.put(pack(x, y, zoom), now());
+		if (accesses.size() == FLUSH_SIZE) executor.execute(flushTask);
+	}
+
+	public synchronized void onInsert()
+	{
+		if (closed) return;
+
+		if (++inserts % CHECK_EVERY == 0) executor.execute(evictTask);
+	}
+
+	// Writes the access times collected so far
+	void flush()
+	{
+		Hashtable<Long, Long> pending;
+		synchronized (this)
+		{
+			if (accesses.isEmpty()) return;
+			pending = accesses;
+			accesses = new Hashtable<Long, Long>();
+		}
+
+		SQLiteStatement update = db.compileStatement("UPDATE tiles SET accessed = ? WHERE x = ? AND y = ? AND z = ? AND downloaded = 1");
+		db.beginTransaction();
+		try
+		{
+			for (Map.Entry<Long, Long> e : pending.entrySet())
+			{
+				long key = e.getKey();
+				update.bindLong(1, e.getValue());
+				update.bindLong(2, (key >>> 29) & ((1 << 29) - 1));
+				update.bindLong(3, key & ((1 << 29) - 1));
+				update.bindLong(4, 17 - (key >>> 58));
+				update.execute();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+			update.close();
+		}
+	}
+
+	// Bytes used by the data, pages freed by deletes are reused by the next
+	// inserts so the file itself stops growing once the quota is reached
+	long usedBytes()
+	{
+		return queryLong("PRAGMA page_size") * (queryLong("PRAGMA page_count") - queryLong("PRAGMA freelist_count"));
+	}
+
+	long queryLong(String query)
+	{
+		Cursor cursor = db.rawQuery(query, null);
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	void evict()
+	{
+		int evicted = 0;
+		while (usedBytes() > quota)
+		{
+			int deleted = evictBatch();
+			if (deleted == 0) break; // Only pinned or packaged tiles left
+			evicted += deleted;
+		}
+
+		if (evicted > 0) Log.i(TAG, evicted + " tiles evicted, " + usedBytes() + " of " + quota + " bytes used");
+	}
+
+	// Deletes the least recently used tiles outside the pinned regions, with
+	// their images when no other tile uses them
+	int evictBatch()
+	{
+		ArrayList<Long> rows = new ArrayList<Long>();
+		ArrayList<String> hashes = new ArrayList<String>();
+
+		Cursor cursor = db.rawQuery("SELECT rowid, hash FROM tiles t WHERE downloaded = 1 AND NOT EXISTS (SELECT 1 FROM pins p WHERE p.z = t.z"
+				+ " AND t.x BETWEEN p.minx AND p.maxx AND t.y BETWEEN p.miny AND p.maxy) ORDER BY downloaded, accessed LIMIT " + EVICT_BATCH, null);
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				rows.add(cursor.getLong(0));
+				if (!cursor.isNull(1)) hashes.add(cursor.getString(1));
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		SQLiteStatement deleteTile = db.compileStatement("DELETE FROM tiles WHERE rowid = ?");
+		SQLiteStatement deleteImage = db.compileStatement("DELETE FROM images WHERE hash = ? AND NOT EXISTS (SELECT 1 FROM tiles WHERE hash = ?)");
+		db.beginTransaction();
+		try
+		{
+			for (long row : rows)
+			{
+				deleteTile.bindLong(1, row);
+				deleteTile.execute();
+			}
+			for (String hash : hashes)
+			{
+				deleteImage.bindString(1, hash);
+				deleteImage.bindString(2, hash);
+				deleteImage.execute();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+			deleteTile.close();
+			deleteImage.close();
+		}
+
+		return rows.size();
+	}
+
+	// Stops the background work and writes the pending access times
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed) return;
+			closed = true;
+		}
+
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+}
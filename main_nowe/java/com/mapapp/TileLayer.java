@@ -0,0 +1,193 @@
+package com.mapapp;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import com.mapapp.core.Viewport;
+
+/**
+ * The tiles under the view drawn once into a bitmap a little larger than
+ * the view, which is then drawn at the offset of the viewport: one draw
+ * call a frame instead of one per tile.
+ *
+ * While panning stays within the margin nothing is drawn into the layer.
+ * When the view gets past it the layer is moved to center the view again,
+ * its pixels are copied over and only the strips that come into it are
+ * drawn from the tiles. Tiles that arrive or change are redrawn at their
+ * place, a new zoom draws everything again.
+ *
+ * Used by one thread at a time, the one that draws the MapView.
+ */
+public class TileLayer
+{
+	// Pixels of map kept on every side of the view
+	final static int MARGIN = 128;
+
+	private final Paint paint;
+
+	// The layer and a second bitmap to move it, swapped at each move
+	private Bitmap front, back;
+	private Canvas frontCanvas, backCanvas;
+
+	// World pixel at the top left corner of front, its zoom and the tiles
+	// drawn in it, null when it needs drawing whole
+	private long originX, originY;
+	private int zoom;
+	private TileSet drawn;
+
+	// Size there was no memory for, not tried again
+	private int failedWidth, failedHeight;
+
+	public TileLayer(Paint paint)
+	{
+		this.paint = paint;
+	}
+
+	// Draws the tiles of the viewport into canvas. False if there's no
+	// memory for the layer, the tiles are then to be drawn one by one
+	public boolean draw(Canvas canvas, Viewport v, TileSet tiles)
+	{
+		if (!allocate(v.width + 2 * MARGIN, v.height + 2 * MARGIN)) return false;
+
+		// Tiles of another zoom don't fit the view, the next set will
+		if (tiles.zoom != v.zoom) tiles = TileSet.EMPTY;
+
+		long left = v.left(), top = v.top();
+		int width = front.getWidth(), height = front.getHeight();
+
+		if (drawn == null || zoom != v.zoom)
+		{
+			zoom = v.zoom;
+			originX = left - MARGIN;
+			originY = top - MARGIN;
+			render(0, 0, width, height, tiles, v.tileSize);
+			drawn = tiles;
+		}
+		else if (left < originX || top < originY || left + v.width > originX + width || top + v.height > originY + height)
+		{
+			scroll(left - MARGIN, top - MARGIN, tiles, v.tileSize);
+		}
+
+		if (tiles != drawn) update(tiles, v.tileSize);
+		drawn = tiles;
+
+		canvas.drawBitmap(front, originX - left, originY - top, paint);
+		return true;
+	}
+
+	// Moves the layer to the new origin, keeping what it has of it
+	void scroll(long newX, long newY, TileSet tiles, int tileSize)
+	{
+		int width = front.getWidth(), height = front.getHeight();
+
+		// Where the pixels go, right and down when positive
+		long dx = originX - newX, dy = originY - newY;
+		originX = newX;
+		originY = newY;
+
+		if (Math.abs(dx) >= width || Math.abs(dy) >= height)
+		{
+			render(0, 0, width, height, tiles, tileSize);
+			return;
+		}
+
+		backCanvas.drawBitmap(front, dx, dy, paint);
+
+		Bitmap bitmap = front;
+		front = back;
+		back = bitmap;
+		Canvas c = frontCanvas;
+		frontCanvas = backCanvas;
+		backCanvas = c;
+
+		// The strips that came into the layer
+		if (dx > 0) render(0, 0, (int) dx, height, tiles, tileSize);
+		else if (dx < 0) render(width + (int) dx, 0, width, height, tiles, tileSize);
+
+		if (dy > 0) render(0, 0, width, (int) dy, tiles, tileSize);
+		else if (dy < 0) render(0, height + (int) dy, width, height, tiles, tileSize);
+	}
+
+	// Draws again the places whose tile isn't the one drawn
+	void update(TileSet tiles, int tileSize)
+	{
+		// Tiles gone, back to the background
+		for (int i = 0; i < drawn.size(); i++)
+		{
+			Tile tile = drawn.get(i);
+			if (tiles.get(tile.x, tile.y) == null) renderTile(tile.x, tile.y, tiles, tileSize);
+		}
+
+		// Tiles new or changed
+		for (int i = 0; i < tiles.size(); i++)
+		{
+			Tile tile = tiles.get(i);
+			if (drawn.get(tile.x, tile.y) != tile) renderTile(tile.x, tile.y, tiles, tileSize);
+		}
+	}
+
+	void renderTile(int x, int y, TileSet tiles, int tileSize)
+	{
+		long l = (long) x * tileSize - originX, t = (long) y * tileSize - originY;
+		if (l >= front.getWidth() || t >= front.getHeight() || l + tileSize <= 0 || t + tileSize <= 0) return;
+
+		render((int) Math.max(l, 0), (int) Math.max(t, 0), (int) Math.min(l + tileSize, front.getWidth()),
+				(int) Math.min(t + tileSize, front.getHeight()), tiles, tileSize);
+	}
+
+	// Draws the rect of the layer, layer pixels, from the tiles
+	void render(int l, int t, int r, int b, TileSet tiles, int tileSize)
+	{
+		frontCanvas.save();
+		frontCanvas.clipRect(l, t, r, b);
+
+		// Grey where there's no tile
+		frontCanvas.drawARGB(255, 100, 100, 100);
+
+		for (int i = 0; i < tiles.size(); i++)
+		{
+			Tile tile = tiles.get(i);
+			long x = (long) tile.x * tileSize - originX, y = (long) tile.y * tileSize - originY;
+			if (tile.img == null || x >= r || y >= b || x + tileSize <= l || y + tileSize <= t) continue;
+
+			frontCanvas.drawBitmap(tile.img, x, y, paint);
+		}
+
+		frontCanvas.restore();
+	}
+
+	boolean allocate(int width, int height)
+	{
+		if (front != null && front.getWidth() == width && front.getHeight() == height) return true;
+		if (width == failedWidth && height == failedHeight) return false;
+
+		release();
+		try
+		{
+			front = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			back = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		}
+		catch (OutOfMemoryError e)
+		{
+			release();
+			failedWidth = width;
+			failedHeight = height;
+			return false;
+		}
+
+		frontCanvas = new Canvas(front);
+		backCanvas = new Canvas(back);
+		return true;
+	}
+
+	// Frees the bitmaps, the next draw makes them again
+	public void release()
+	{
+		if (front != null) front.recycle();
+		if (back != null) back.recycle();
+		front = back = null;
+		frontCanvas = backCanvas = null;
+		drawn = null;
+	}
+}
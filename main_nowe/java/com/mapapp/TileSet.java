@@ -0,0 +1,64 @@
+package com.mapapp;
+
+import java.util.HashMap;
+
+/**
+ * The tiles of one zoom level ready to be drawn, never changed once made.
+ * TilesProvider builds the next set beside the current one and publishes it
+ * with a single volatile write, the view draws whatever set it read without
+ * taking a lock.
+ */
+public final class TileSet
+{
+	public final static TileSet EMPTY = new TileSet(-1, new HashMap<String, Tile>());
+
+	public final int zoom;
+
+	// Index\key in the format x:y
+	private final HashMap<String, Tile> tiles;
+
+	// Same tiles, drawn without an iterator
+	private final Tile[] list;
+
+	// Takes tiles, which mustn't be changed afterwards
+	TileSet(int zoom, HashMap<String, Tile> tiles)
+	{
+		this.zoom = zoom;
+		this.tiles = tiles;
+		list = tiles.values().toArray(new Tile[tiles.size()]);
+	}
+
+	public static String key(int x, int y)
+	{
+		return x + ":" + y;
+	}
+
+	public int size()
+	{
+		return list.length;
+	}
+
+	public Tile get(int i)
+	{
+		return list[i];
+	}
+
+	// The tile at x, y or null
+	public Tile get(int x, int y)
+	{
+		return tiles.get(key(x, y));
+	}
+
+	public boolean isEmpty()
+	{
+		return list.length == 0;
+	}
+
+	// A copy with tile added, or replacing the one at its place
+	TileSet with(Tile tile)
+	{
+		HashMap<String, Tile> copy = new HashMap<String, Tile>(tiles);
+		copy.put(key(tile.x, tile.y), tile);
+		return new TileSet(zoom, copy);
+	}
+}
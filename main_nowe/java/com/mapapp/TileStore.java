@@ -0,0 +1,42 @@
+package com.mapapp;
+
+import java.nio.ByteBuffer;
+
+import com.mapapp.core.TileRect;
+
+
+/**
+ * Where the tiles images come from, hides whether it's a sqlitedb or a
+ * tile bundle from the TilesProvider.
+ * Zoom levels are the real ones, each store converts to its own scheme.
+ */
+public interface TileStore
+{
+	// Receives the tiles found by fetchTiles
+	public interface TileHandler
+	{
+		// hash identifies the image content, tiles with the same hash have
+		// the same image. The buffer is only valid during the call.
+		// Stores reading in parallel may call it from several threads at once.
+		public void onTile(int x, int y, String hash, ByteBuffer image);
+	}
+
+	// Calls handler for each stored tile of the zoom level inside rect
+	public void fetchTiles(TileRect rect, int zoom, TileHandler handler);
+
+	// Range of the zoom levels having tiles, -1 when the store is empty
+	public int getMinZoom();
+
+	public int getMaxZoom();
+
+	// Tile indices covered at the zoom level, null if it has no tiles
+	public TileRect getExtent(int zoom);
+
+	// False for stores that can't take downloaded tiles
+	public boolean isWritable();
+
+	// Stores a tile and returns the hash its image is stored under
+	public String insertTile(int x, int y, int zoom, byte[] image);
+
+	public void close();
+}
@@ -9,39 +9,62 @@
 
 package com.mapapp;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
-import android.content.ContentValues;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Rect;
 import android.os.Handler;
 
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileRect;
 import com.mapapp.web.DownloadTaskFinishedCallback;
 import com.mapapp.web.TileDownloadTask;
+import com.mapapp.web.TileTranscoder;
 import com.mapapp.web.WebTilesProvider;
 
 public class TilesProvider implements DownloadTaskFinishedCallback
 {
 	WebTilesProvider webProvider;
 
-	// The database that holds the map
-	protected SQLiteDatabase tilesDB;
+	// Where the map is stored, a database or a tile bundle
+	protected TileStore store;
 
-	// Tiles will be stored here, the index\key will be in this format x:y
-	protected Hashtable<String, Tile> tiles = new Hashtable<String, Tile>();
+	// Tiles will be stored here. The set is never changed, a new one
+	// replaces it so the view can draw it without locking
+	protected volatile TileSet tiles = TileSet.EMPTY;
 
-	// An object to use with synchronized to lock tiles hashtable
-	public Object tilesLock = new Object();
+	// Decoded bitmaps of the tiles above, the key is the image hash
+	// Identical tiles (sea, forest...) all point to the same bitmap
+	// Only used under writeLock
+	protected HashMap<String, Bitmap> bitmaps = new HashMap<String, Bitmap>();
+
+	// Decoded tiles kept on disk, null when not used
+	protected PixelCache pixelCache;
+
+	// Makes the changes of the tiles one at a time, drawing doesn't use it
+	private final Object writeLock = new Object();
+
+	// Zoom of the last fetchTiles, -1 after clear. Only downloads of this
+	// zoom are kept, the ones still running for the zoom before are not
+	// Guarded by writeLock
+	private int requestedZoom = -1;
 
 	// A handler from the outside to be informed of new downloaded tiles
-	// Used to redraw the map view whenever a new tile arrives
+	// Used to redraw the map view whenever a new tile arrives, the message
+	// has the zoom in what and the tile in arg1 (x) and arg2 (y)
 	Handler newTileHandler;
 
 	public TilesProvider(String dbPath, Handler newTileHandler)
+	{
+		this(openStore(dbPath), newTileHandler);
+	}
+
+	public TilesProvider(TileStore store, Handler newTileHandler)
 	{
 		/*
 		 *  Create WebTileProvider with max number of thread equal to five
@@ -51,21 +74,54 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 		 */
 		webProvider = new WebTilesProvider(5, this);
 
-		// This time we are opening the database as read\write
-		tilesDB = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READWRITE);
+		this.store = store;
 
 		// This handler is to be notified when a new tile is downloaded
 		// and available for rendering
 		this.newTileHandler = newTileHandler;
 	}
 
-	// Updates the tiles in the hashtable
-	public void fetchTiles(Rect rect, int zoom)
+	// Opens a map pack, a tile bundle or a sqlitedb, only to read it.
+	// The file isn't changed, unlike with openStore
+	// Fails the same way as opening a broken database does, unchecked
+	public static TileStore openPack(String path)
 	{
-		// We are using a separate object here for synchronizing
-		// Using the hashtable tiles will cause problems when we swap the
-		// pointers temp and tiles
-		synchronized (tilesLock)
+		if (!MappedTileStore.isBundle(path)) return SQLiteTileStore.openReadOnly(path);
+
+		try
+		{
+			return new MappedTileStore(path);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Can't open tile bundle " + path, e);
+		}
+	}
+
+	// Opens a tile bundle or a sqlitedb depending on what the file is, the
+	// sqlitedb is made ready to take downloaded tiles
+	// Fails the same way as opening a broken database does, unchecked
+	public static TileStore openStore(String path)
+	{
+		if (!MappedTileStore.isBundle(path)) return new SQLiteTileStore(path);
+
+		try
+		{
+			return new MappedTileStore(path);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Can't open tile bundle " + path, e);
+		}
+	}
+
+	// Makes the set of tiles inside rect and publishes it. Reads and decodes
+	// the images, MapView calls it from its loader thread not the UI thread
+	public void fetchTiles(TileRect rect, int zoom)
+	{
+		// Only against the other writers, the view keeps drawing the current
+		// set while the new one is read and decoded
+		synchronized (writeLock)
 		{
 			// Max tile index for x and y
 			int maxIndex = (int) Math.pow(2, zoom) - 1;
@@ -82,84 +138,81 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 				for (int y = rect.top; y <= rect.bottom; y++)
 				{
 					if (y < 0 || y > maxIndex) continue;
-					expectedTiles.add(x + ":" + y);
+					expectedTiles.add(TileSet.key(x, y));
 				}
 			}
 
-			// Perpare the query for the database
-			String query = "SELECT x,y,image FROM tiles WHERE x >= " + rect.left + " AND x <= " + rect.right + " AND y >= " + rect.top
-					+ " AND y <=" + rect.bottom + " AND z == " + (17 - zoom);
-
-			// query should be something like:
-			// SELECT x,y,image FROM tiles WHERE x>=0 AND x<=4 AND y>=2 AND
-			// y<=6
-			// AND
-			// z==6
-
-			Cursor cursor;
-			cursor = tilesDB.rawQuery(query, null);
-
-			// Now cursor contains a table with these columns
-			/*
-			 * x(int)	y(int)	image(byte[])
-			 */
+			requestedZoom = zoom;
 
 			// Prepare an empty hash table to fill with the tiles we fetched
-			Hashtable<String, Tile> temp = new Hashtable<String, Tile>();
-
-			// Loop through all the rows(tiles) of the table returned by the
-			// query
-			// MUST call moveToFirst
-			if (cursor.moveToFirst())
+			// Stores call onTile on this thread, even ShardedTileStore which
+			// reads its packs in parallel. bitmaps is only read
+			final TileSet current = tiles;
+			final Map<String, Bitmap> currentBitmaps = bitmaps;
+			final HashMap<String, Tile> temp = new HashMap<String, Tile>();
+			final HashMap<String, Bitmap> tempBitmaps = new HashMap<String, Bitmap>();
+
+			// Loop through all the tiles the store has inside rect
+			store.fetchTiles(rect, zoom, new TileStore.TileHandler()
 			{
-				do
+				@Override
+				public void onTile(int x, int y, String hash, ByteBuffer image)
 				{
-					// Getting the index of this tile
-					int x = cursor.getInt(0);
-					int y = cursor.getInt(1);
-
-					// Try to get this tile from the hashtable we have
-					Tile tile = tiles.get(x + ":" + y);
+					// Try to get this tile from the set we have
+					Tile tile = current.zoom == zoom ? current.get(x, y) : null;
 
 					// If This is a new tile, we didn't fetch it in the
 					// previous
 					// fetchTiles call.
 					if (tile == null)
 					{
-						// Get the binary image data from the third cursor
-						// column
-						byte[] img = cursor.getBlob(2);
+						// Reuse the bitmap of an identical tile if we have one
+						Bitmap tileBitmap = hash != null ? tempBitmaps.get(hash) : null;
+						if (tileBitmap == null) tileBitmap = currentBitmaps.get(hash);
 
 						// Create a bitmap (expensive operation)
-						Bitmap tileBitmap = BitmapFactory.decodeByteArray(img, 0, img.length);
+						if (tileBitmap == null) tileBitmap = decode(hash, image);
 
 						// Create the new tile
-						tile = new Tile(x, y, tileBitmap);
+						tile = new Tile(x, y, tileBitmap, hash);
 					}
 
 					// The object "tile" should now be ready for rendering
 
+					// Keep its bitmap shared for the identical tiles
+					if (tile.hash != null && tile.img != null) tempBitmaps.put(tile.hash, tile.img);
+
 					// Add the tile to the temp hashtable
-					temp.put(x + ":" + y, tile);
+					temp.put(TileSet.key(x, y), tile);
+				}
+			});
+
+			// Tiles of the zoom we have in memory only (downloaded into a
+			// read only store) stay while they are inside rect
+			if (current.zoom == zoom)
+			{
+				for (int i = 0; i < current.size(); i++)
+				{
+					Tile t = current.get(i);
+					if (rect.contains(t.x, t.y) && !temp.containsKey(TileSet.key(t.x, t.y)))
+					{
+						temp.put(TileSet.key(t.x, t.y), t);
+						if (t.hash != null && t.img != null) tempBitmaps.put(t.hash, t.img);
+					}
 				}
-				while (cursor.moveToNext()); // Move to next tile in the
-												// query
-
-				// The hashtable "tiles" is now outdated,
-				// so clear it and set it to the new hashtable temp.
-
-				/* 
-				 * Swapping here sometimes creates an exception if we use
-				 * tiles for synchronizing
-				 */
-				tiles.clear();
-				tiles = temp;
 			}
 
+			// The set "tiles" is now outdated, publish the new one even
+			// empty, it's the zoom downloads are added to.
+			// Whoever is drawing the old one finishes with it
+			TileSet fetched = new TileSet(zoom, temp);
+			tiles = fetched;
+			bitmaps = tempBitmaps;
+
 			// Remove the tiles we have from the ones to download
-			for (Tile t : tiles.values())
+			for (int i = 0; i < fetched.size(); i++)
 			{
-				expectedTiles.remove(t.x + ":" + t.y);
+				expectedTiles.remove(TileSet.key(fetched.get(i).x, fetched.get(i).y));
 			}
 
 			// Download the tiles we couldn't find
@@ -174,8 +227,58 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 		}
 	}
 
-	// Gets the hashtable where the tiles are stored
-	public Hashtable<String, Tile> getTiles()
+	// Updates a map pack with a delta package, see ShardedTileStore.applyDelta.
+	// The tiles in memory are dropped, MapView.refresh then reads the new ones
+	public TileDelta applyDelta(String packPath, InputStream in) throws IOException
+	{
+		if (!(store instanceof ShardedTileStore)) throw new IOException("The map has no packs to update");
+
+		TileDelta delta = ((ShardedTileStore) store).applyDelta(packPath, in);
+		clear();
+		return delta;
+	}
+
+	// Decodes an image coming from the store, mapped images are read in place
+	static Bitmap decode(ByteBuffer image)
+	{
+		if (image.hasArray())
+		{
+			return BitmapFactory.decodeByteArray(image.array(), image.arrayOffset() + image.position(), image.remaining());
+		}
+
+		return BitmapFactory.decodeStream(new ByteBufferInputStream(image));
+	}
+
+	// Takes the pixels from the disk cache if they are there, otherwise
+	// decodes the image and keeps its pixels for the next time
+	Bitmap decode(String hash, ByteBuffer image)
+	{
+		PixelCache cache = pixelCache;
+		if (cache == null) return decode(image);
+
+		Bitmap bitmap = cache.get(hash);
+		if (bitmap == null)
+		{
+			bitmap = decode(image);
+			if (bitmap != null) cache.put(hash, bitmap);
+		}
+		return bitmap;
+	}
+
+	// Uses the cache for decoded tiles, closed with the provider
+	public void setPixelCache(PixelCache cache)
+	{
+		pixelCache = cache;
+	}
+
+	// Sets how downloaded tiles are re-encoded before being stored
+	public void setTranscoder(TileTranscoder transcoder)
+	{
+		webProvider.setTranscoder(transcoder);
+	}
+
+	// Gets the tiles to draw, the set doesn't change while it's used
+	public TileSet getTiles()
 	{
 		return tiles;
 	}
@@ -184,15 +287,20 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 	{
 		// If fetchTiles is used after closing it will not work, it will throw
 		// an exception
-		tilesDB.close();
+		store.close();
+		webProvider.close();
+
+		if (pixelCache != null) pixelCache.close();
 	}
 
 	public void clear()
 	{
-		// Make sure no other thread is using the hashtable before clearing it
-		synchronized (tilesLock)
+		// The view may still be drawing the old set, it's replaced not cleared
+		synchronized (writeLock)
 		{
-			tiles.clear();
+			tiles = TileSet.EMPTY;
+			bitmaps = new HashMap<String, Bitmap>();
+			requestedZoom = -1;
 		}
 
 		// Cancel all download operations
@@ -215,25 +323,39 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 		// Log.d("TAG", "Downloaded " + x + ":" + y);
 
 		// Insert tile into database as an array of bytes
-		insertTileToDB(x, y, 17 - task.getZ(), tile);
+		String hash = insertTileToDB(x, y, task.getZ(), tile);
 
 		// Creating bitmaps may throw OutOfMemoryError
 		try
 		{
-			Bitmap bm = BitmapFactory.decodeByteArray(tile, 0, tile.length);
-			Tile t = new Tile(x, y, bm);
+			// An identical tile may already be decoded
+			Bitmap bm;
+			synchronized (writeLock)
+			{
+				bm = bitmaps.get(hash);
+			}
+			if (bm == null) bm = decode(hash, ByteBuffer.wrap(tile));
+
+			Tile t = new Tile(x, y, bm, hash);
 
-			// Add the new tile to our tiles memory cache
-			synchronized (tilesLock)
+			// Publish a copy of the set with the new tile. Tiles of a zoom
+			// the map left, downloads cancel can't stop once reading, are
+			// only kept in the database
+			synchronized (writeLock)
 			{
-				tiles.put(x + ":" + y, t);
+				if (task.getZ() != requestedZoom) return;
+
+				TileSet current = tiles;
+				if (current.zoom == requestedZoom) tiles = current.with(t);
+				else tiles = new TileSet(requestedZoom, new HashMap<String, Tile>()).with(t);
+				if (bm != null) bitmaps.put(hash, bm);
 			}
 
 			// Here we inform who ever interested that we have a new tile
 			// ready to be rendered!
 			// The handler is in the MapAppActivity and sending it a message
-			// will cause it to redraw the MapView
-			if (newTileHandler != null) newTileHandler.sendEmptyMessage(0);
+			// will cause it to redraw the part of the MapView with the tile
+			if (newTileHandler != null) newTileHandler.obtainMessage(task.getZ(), x, y).sendToTarget();
 		}
 		catch (OutOfMemoryError e)
 		{
@@ -242,14 +364,12 @@ public class TilesProvider implements DownloadTaskFinishedCallback
 		}
 	}
 
-	// Marked as synchronized to prevent to insert operations at the same time
-	synchronized void insertTileToDB(int x, int y, int z, byte[] tile)
+	// Stores the tile and returns the hash of its image
+	// Read only stores (bundles) only keep downloaded tiles in memory
+	String insertTileToDB(int x, int y, int zoom, byte[] tile)
 	{
-		ContentValues vals = new ContentValues();
-		vals.put("x", x);
-		vals.put("y", y);
-		vals.put("z", z);
-		vals.put("image", tile);
-		tilesDB.insert("tiles", null, vals);
+		if (!store.isWritable()) return TileHash.hash(tile);
+
+		return store.insertTile(x, y, zoom, tile);
 	}
 }
\ No newline at end of file
@@ -128,6 +128,12 @@ public class TileDownloadTask implements Runnable
 		return file;
 	}
 
+	// Used by the ingest stage to replace the downloaded file
+	void setFile(byte[] file)
+	{
+		this.file = file;
+	}
+
 	public int getX()
 	{
 		return x;
@@ -0,0 +1,8 @@
+package com.mapapp.web;
+
+// Re-encodes a downloaded tile before it is stored in the database
+public interface TileTranscoder
+{
+	// Returns the new image bytes, or the given bytes if nothing was done
+	public byte[] transcode(byte[] tile);
+}
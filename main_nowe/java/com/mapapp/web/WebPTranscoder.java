@@ -0,0 +1,81 @@
+package com.mapapp.web;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Re-encodes tiles as WebP.
+ * With quality 100 (LOSSLESS) the tiles are encoded lossless from Android 10
+ * (API 29) on, with WEBP_LOSSLESS from API 30. Before API 29 the platform
+ * only has lossy WebP, quality 100 is then the best lossy quality and the
+ * tiles differ slightly from the originals. Lower values give lossy tiles
+ * that are a lot smaller for photo like sources.
+ */
+public class WebPTranscoder implements TileTranscoder
+{
+	public final static int LOSSLESS = 100;
+
+	private final int quality;
+
+	public WebPTranscoder()
+	{
+		this(LOSSLESS);
+	}
+
+	public WebPTranscoder(int quality)
+	{
+		this.quality = quality;
+	}
+
+	@Override
+	public byte[] transcode(byte[] tile)
+	{
+		if (tile == null || isWebP(tile)) return tile;
+
+		// Creating bitmaps may throw OutOfMemoryError
+		try
+		{
+			Bitmap bm = BitmapFactory.decodeByteArray(tile, 0, tile.length);
+
+			// Not an image we can read, store it as it is
+			if (bm == null) return tile;
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(tile.length);
+			boolean ok = bm.compress(format(quality), quality, out);
+			bm.recycle();
+
+			byte[] result = out.toByteArray();
+
+			// Keep the original if it's already smaller, simple tiles
+			// (one color) are often tiny PNGs
+			if (!ok || result.length >= tile.length) return tile;
+
+			return result;
+		}
+		catch (OutOfMemoryError e)
+		{
+			return tile;
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	static Bitmap.CompressFormat format(int quality)
+	{
+		// WEBP is deprecated from API 30, for lossless the quality is then
+		// the effort spent making the file small
+		if (Build.VERSION.SDK_INT >= 30) return quality == LOSSLESS ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP_LOSSY;
+
+		// Lossless at quality 100 from API 29, lossy before
+		return Bitmap.CompressFormat.WEBP;
+	}
+
+	// WebP files start with "RIFF", 4 bytes of size then "WEBP"
+	public static boolean isWebP(byte[] img)
+	{
+		return img.length >= 12 && img[0] == 'R' && img[1] == 'I' && img[2] == 'F' && img[3] == 'F' && img[8] == 'W' && img[9] == 'E'
+				&& img[10] == 'B' && img[11] == 'P';
+	}
+}
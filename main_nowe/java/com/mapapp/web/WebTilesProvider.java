@@ -29,6 +29,12 @@ public class WebTilesProvider implements DownloadTaskFinishedCallback
 	// A callback to be called by finished\failed tasks
 	DownloadTaskFinishedCallback handler;
 
+	// Optional stage re-encoding tiles of this source before they are stored
+	volatile TileTranscoder transcoder;
+
+	// Url of a tile with z, x, y in this order
+	volatile String urlFormat = "http://a.tile.openstreetmap.org/%s/%s/%s.png";
+
 	public WebTilesProvider(int threadsCount, DownloadTaskFinishedCallback handler)
 	{
 		this.threadsCount = threadsCount;
@@ -61,11 +67,11 @@ public class WebTilesProvider implements DownloadTaskFinishedCallback
 
 	String formatUrl(int x, int y, int z)
 	{
-		// Here we're using open street map tiles, you can replace it with the
-		// server you want
+		// By default we're using open street map tiles, setUrlFormat replaces
+		// it with the server you want
 		// Just make sure you have the right to download the tiles
 		// Also note the zxy order for the tiles!
-		String result = String.format("http://a.tile.openstreetmap.org/%s/%s/%s.png", z, x, y);
+		String result = String.format(urlFormat, z, x, y);
 
 		return result;
 	}
@@ -85,21 +91,46 @@ public class WebTilesProvider implements DownloadTaskFinishedCallback
 		}
 	}
 
+	// Sets where the tiles are downloaded from, a format with z, x, y in
+	// this order like "http://a.tile.openstreetmap.org/%s/%s/%s.png"
+	public void setUrlFormat(String urlFormat)
+	{
+		this.urlFormat = urlFormat;
+	}
+
+	// Sets the transcoder applied to every tile downloaded from this source,
+	// null stores the tiles as they come from the server
+	public void setTranscoder(TileTranscoder transcoder)
+	{
+		this.transcoder = transcoder;
+	}
+
 	// Called by a TileDownloadTask when finished
 	@Override
-	public synchronized void handleDownload(TileDownloadTask task)
+	public void handleDownload(TileDownloadTask task)
 	{
 		int state = task.getState();
 
-		// If downloaded successfully
-		if (state == TileDownloadTask.TASK_COMPLETE)
+		// Transcoding is done here, still on the download thread and
+		// before taking the lock, so several tiles are encoded at once
+		TileTranscoder transcoder = this.transcoder;
+		if (state == TileDownloadTask.TASK_COMPLETE && transcoder != null)
 		{
-			// Pass the task to the TilesProvider
-			if (handler != null) handler.handleDownload(task);
+			task.setFile(transcoder.transcode(task.getFile()));
 		}
-		else if (state == TileDownloadTask.TASK_FAILED)
+
+		synchronized (this)
 		{
-			// Do nothing!!
+			// If downloaded successfully
+			if (state == TileDownloadTask.TASK_COMPLETE)
+			{
+				// Pass the task to the TilesProvider
+				if (handler != null) handler.handleDownload(task);
+			}
+			else if (state == TileDownloadTask.TASK_FAILED)
+			{
+				// Do nothing!!
+			}
 		}
 
 		// It's necessary to remove the request from pending list
@@ -123,4 +154,15 @@ public class WebTilesProvider implements DownloadTaskFinishedCallback
 		// Create a new executor
 		pool = Executors.newFixedThreadPool(threadsCount);
 	}
+
+	// Kills the downloads like cancelDownloads but for good, the threads
+	// end and no tile can be downloaded anymore
+	public void close()
+	{
+		pool.shutdownNow();
+		synchronized (pendingRequests)
+		{
+			pendingRequests.clear();
+		}
+	}
 }
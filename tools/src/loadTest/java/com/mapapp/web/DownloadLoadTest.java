@@ -0,0 +1,254 @@
+package com.mapapp.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Drives WebTilesProvider against a LocalTileServer the way the map does
+ * while the user pans and zooms: every step the visible tiles that didn't
+ * arrive yet are requested, the view moves one tile to the right and every
+ * few steps it zooms in, which cancels the downloads like TilesProvider.clear.
+ *
+ * Reported are the throughput, the time to visible tile (from the first
+ * request of a tile to its arrival while it's still visible) and the wasted
+ * requests: the same tile requested again, tiles arriving after they left
+ * the view, and tiles dropped from the queue by a cancel.
+ *
+ * Plain Java like the download code, built with the app's download
+ * package (without WebPTranscoder, which needs Android) in the loadTest
+ * source set of the tools, run with "gradle :tools:loadTest [-Psteps=N]".
+ * A scenario where no tile ever arrived while visible has no time to
+ * visible tile, it's reported as failed.
+ */
+public class DownloadLoadTest implements DownloadTaskFinishedCallback
+{
+	// requested are the tiles asked for and completed the ones of them that
+	// arrived, each tile counted once. The rest never arrived: cancelled,
+	// missing on the server or still queued at the end. errors are the
+	// failed responses of the server, one per attempt, a tile retried three
+	// times counts three
+	public static class Result
+	{
+		public int requested, completed, errors, visible;
+		public int duplicates, offscreen, dropped;
+		public long millis;
+		public long p50, p90, p99;
+
+		public double throughput()
+		{
+			return millis == 0 ? 0 : completed * 1000.0 / millis;
+		}
+
+		// No tile arrived in view, the downloads never caught up with it
+		public boolean isFailed()
+		{
+			return visible == 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			if (isFailed())
+			{
+				return String.format("FAILED, no tile arrived while visible: %d tiles requested, %d completed, %d never arrived,"
+						+ " %d error responses in %d ms, wasted: %d duplicate, %d offscreen, %d dropped", requested, completed,
+						requested - completed, errors, millis, duplicates, offscreen, dropped);
+			}
+
+			return String.format("%d tiles requested, %d completed, %d never arrived, %d error responses in %d ms, %.1f tiles/s,"
+					+ " time to visible tile p50:%d p90:%d p99:%d ms, wasted: %d duplicate, %d offscreen, %d dropped", requested, completed,
+					requested - completed, errors, millis, throughput(), p50, p90, p99, duplicates, offscreen, dropped);
+		}
+	}
+
+	private final LocalTileServer server;
+	private final WebTilesProvider provider;
+
+	// The view, guarded by this like everything below
+	private int zoom, left, top, right, bottom;
+
+	// When each tile was first requested, by z/x/y
+	private final HashMap<String, Long> requested = new HashMap<String, Long>();
+	private final HashSet<String> received = new HashSet<String>();
+	private final ArrayList<Long> latencies = new ArrayList<Long>();
+	private int completed, offscreen;
+
+	public DownloadLoadTest(LocalTileServer server, int threads)
+	{
+		this.server = server;
+		provider = new WebTilesProvider(threads, this);
+		provider.setUrlFormat(server.getUrlFormat());
+	}
+
+	// A view of width x height tiles moves a tile every stepMillis, it zooms
+	// in every zoomEvery steps (0 never)
+	public Result run(int steps, long stepMillis, int width, int height, int zoomEvery) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		int z = 10, x = 500, y = 300;
+
+		for (int step = 0; step < steps; step++)
+		{
+			if (zoomEvery > 0 && step > 0 && step % zoomEvery == 0)
+			{
+				provider.cancelDownloads();
+				z++;
+				x *= 2;
+				y *= 2;
+			}
+
+			synchronized (this)
+			{
+				zoom = z;
+				left = x;
+				top = y;
+				right = x + width - 1;
+				bottom = y + height - 1;
+			}
+
+			for (int tx = x; tx < x + width; tx++)
+			{
+				for (int ty = y; ty < y + height; ty++)
+				{
+					String key = z + "/" + tx + "/" + ty;
+					synchronized (this)
+					{
+						if (received.contains(key)) continue;
+						if (!requested.containsKey(key)) requested.put(key, System.currentTimeMillis());
+					}
+					provider.downloadTile(tx, ty, z);
+				}
+			}
+
+			Thread.sleep(stepMillis);
+			x++;
+		}
+
+		// The view stops, its tiles have at most 10 seconds to arrive. Done
+		// sooner if nothing is downloading anymore, failed tiles never will
+		long end = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < end && !isViewComplete())
+		{
+			synchronized (provider.pendingRequests)
+			{
+				if (provider.pendingRequests.isEmpty()) break;
+			}
+			Thread.sleep(10);
+		}
+		provider.close();
+
+		return result(System.currentTimeMillis() - start);
+	}
+
+	synchronized boolean isViewComplete()
+	{
+		for (int tx = left; tx <= right; tx++)
+		{
+			for (int ty = top; ty <= bottom; ty++)
+			{
+				if (!received.contains(zoom + "/" + tx + "/" + ty)) return false;
+			}
+		}
+		return true;
+	}
+
+	synchronized Result result(long millis)
+	{
+		Result r = new Result();
+		r.millis = millis;
+		r.requested = requested.size();
+		r.completed = completed;
+		r.errors = server.getErrors() + server.getNotFound() + server.getThrottled();
+		r.offscreen = offscreen;
+		r.visible = latencies.size();
+		r.duplicates = server.getDuplicates();
+
+		// Requested tiles the server never saw were cancelled in the queue
+		for (String key : requested.keySet())
+		{
+			String[] zxy = key.split("/");
+			if (server.getRequests(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]), Integer.parseInt(zxy[2])) == 0) r.dropped++;
+		}
+
+		Collections.sort(latencies);
+		r.p50 = percentile(latencies, 0.50);
+		r.p90 = percentile(latencies, 0.90);
+		r.p99 = percentile(latencies, 0.99);
+		return r;
+	}
+
+	static long percentile(ArrayList<Long> sorted, double q)
+	{
+		if (sorted.isEmpty()) return 0;
+		return sorted.get(Math.min(sorted.size() - 1, (int) (q * sorted.size())));
+	}
+
+	@Override
+	public synchronized void handleDownload(TileDownloadTask task)
+	{
+		// WebTilesProvider only passes the completed ones, failed tiles are
+		// requested again at the next step if still visible
+		if (task.getState() != TileDownloadTask.TASK_COMPLETE) return;
+
+		// A download cancelled late may still arrive next to its retry
+		String key = task.getZ() + "/" + task.getX() + "/" + task.getY();
+		if (!received.add(key)) return;
+
+		completed++;
+
+		boolean visible = task.getZ() == zoom && task.getX() >= left && task.getX() <= right && task.getY() >= top && task.getY() <= bottom;
+		if (visible) latencies.add(System.currentTimeMillis() - requested.get(key));
+		else offscreen++;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+
+		boolean failed = false;
+
+		String[] names = { "no faults", "lognormal latency 80/600 ms", "5% errors", "2% missing", "throttled at 50/s", "slow bodies 256 KB/s" };
+		for (int i = 0; i < names.length; i++)
+		{
+			LocalTileServer server = new LocalTileServer(42);
+			switch (i)
+			{
+			case 1:
+				server.setLatency(LocalTileServer.logNormal(80, 600));
+				break;
+			case 2:
+				server.setErrorRate(0.05);
+				break;
+			case 3:
+				server.setNotFoundRate(0.02);
+				break;
+			case 4:
+				server.setMaxRequestsPerSecond(50);
+				break;
+			case 5:
+				// A tile takes about 250 ms, the downloads fall behind the
+				// view but tiles of the last view arrive while it waits.
+				// At 40 KB/s a tile takes 1.5 s, none arrives in view before
+				// the wait ends and the scenario would always fail
+				server.setBodyBytesPerSecond(256 * 1024);
+				break;
+			}
+
+			try
+			{
+				// Five threads like TilesProvider, a phone sized view
+				Result r = new DownloadLoadTest(server, 5).run(steps, 100, 5, 8, 15);
+				System.out.println(names[i] + ": " + r);
+				failed |= r.isFailed();
+			}
+			finally
+			{
+				server.close();
+			}
+		}
+
+		if (failed) System.exit(1);
+	}
+}
@@ -0,0 +1,441 @@
+package com.mapapp.web;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import com.mapapp.core.PngWriter;
+
+/**
+ * In process stand-in for a tile server like openstreetmap.org, for testing
+ * WebTilesProvider and TileDownloadTask without network.
+ *
+ * Tiles are generated PNGs, always the same bytes for the same z/x/y. Faults
+ * are configurable: latency drawn from a distribution, a share of server
+ * errors (500), missing tiles (404, always the same tiles), throttling above
+ * a request rate (429) and bodies sent at a limited speed.
+ * Every request is counted per tile so duplicate downloads can be told.
+ */
+public class LocalTileServer
+{
+	final static Pattern TILE_PATH = Pattern.compile("/(\\d+)/(\\d+)/(\\d+)\\.png");
+
+	// Milliseconds to wait before answering a request
+	public interface Latency
+	{
+		long next(Random random);
+	}
+
+	public static Latency fixed(final long millis)
+	{
+		return new Latency()
+		{
+			@Override
+			public long next(Random random)
+			{
+				return millis;
+			}
+		};
+	}
+
+	public static Latency uniform(final long min, final long max)
+	{
+		return new Latency()
+		{
+			@Override
+			public long next(Random random)
+			{
+				return min + (long) (random.nextDouble() * (max - min));
+			}
+		};
+	}
+
+	// Long tailed like real servers, half the requests are under median
+	// and one in a hundred above p99
+	public static Latency logNormal(long median, long p99)
+	{
+		final double mu = Math.log(median);
+		final double sigma = (Math.log(p99) - mu) / 2.326;
+		return new Latency()
+		{
+			@Override
+			public long next(Random random)
+			{
+				return (long) Math.exp(mu + sigma * random.nextGaussian());
+			}
+		};
+	}
+
+	private final ServerSocket server;
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	// Open connections, closed with the server since reading them doesn't
+	// stop on interrupt
+	private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final Random random;
+
+	private volatile Latency latency = fixed(0);
+	private volatile double errorRate, notFoundRate;
+	private volatile int maxRequestsPerSecond, bodyBytesPerSecond;
+	private volatile int detail = 30;
+
+	// Requests of every tile, by path
+	private final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger total = new AtomicInteger(), errors = new AtomicInteger(), notFound = new AtomicInteger(),
+			throttled = new AtomicInteger();
+
+	// Requests of the current second, for throttling
+	private long second;
+	private int secondRequests;
+
+	// Generated tiles are kept, generating one takes a few milliseconds
+	private final ConcurrentHashMap<String, byte[]> tiles = new ConcurrentHashMap<String, byte[]>();
+
+	// The seed makes latencies and errors repeatable from run to run, as far
+	// as the order of the requests is
+	public LocalTileServer(long seed) throws IOException
+	{
+		random = new Random(seed);
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		pool.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		});
+	}
+
+	// For WebTilesProvider.setUrlFormat
+	public String getUrlFormat()
+	{
+		return "http://127.0.0.1:" + server.getLocalPort() + "/%s/%s/%s.png";
+	}
+
+	public void setLatency(Latency latency)
+	{
+		this.latency = latency;
+	}
+
+	// Share of the requests answered with 500
+	public void setErrorRate(double rate)
+	{
+		errorRate = rate;
+	}
+
+	// Share of the tiles that don't exist, always the same ones
+	public void setNotFoundRate(double rate)
+	{
+		notFoundRate = rate;
+	}
+
+	// Requests above this in a second get 429, 0 for no limit
+	public void setMaxRequestsPerSecond(int max)
+	{
+		maxRequestsPerSecond = max;
+	}
+
+	// Speed the bodies are sent at, 0 for full speed
+	public void setBodyBytesPerSecond(int bytesPerSecond)
+	{
+		bodyBytesPerSecond = bytesPerSecond;
+	}
+
+	// Percentage of noisy rows in the tiles, the tile size grows with it
+	// from about 1 KB to 190 KB
+	public void setDetail(int percent)
+	{
+		detail = percent;
+		tiles.clear();
+	}
+
+	public int getRequests()
+	{
+		return total.get();
+	}
+
+	// Requests for tiles that were already requested before
+	public int getDuplicates()
+	{
+		return total.get() - requests.size();
+	}
+
+	public int getRequests(int z, int x, int y)
+	{
+		AtomicInteger count = requests.get("/" + z + "/" + x + "/" + y + ".png");
+		return count == null ? 0 : count.get();
+	}
+
+	public int getErrors()
+	{
+		return errors.get();
+	}
+
+	public int getNotFound()
+	{
+		return notFound.get();
+	}
+
+	public int getThrottled()
+	{
+		return throttled.get();
+	}
+
+	public void close()
+	{
+		try
+		{
+			server.close();
+		}
+		catch (IOException e)
+		{
+			// Closed anyway
+		}
+		for (Socket socket : sockets)
+			close(socket);
+		pool.shutdownNow();
+	}
+
+	static void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing to do
+		}
+	}
+
+	void accept()
+	{
+		while (!server.isClosed())
+		{
+			try
+			{
+				final Socket socket = server.accept();
+				sockets.add(socket);
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				// Closed
+			}
+		}
+	}
+
+	// Answers the requests of a connection until the client closes it
+	void serve(Socket socket)
+	{
+		try
+		{
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			String request;
+			while ((request = readRequest(in)) != null)
+			{
+				respond(request.split(" ")[1], out);
+			}
+		}
+		catch (IOException e)
+		{
+			// The client went away
+		}
+		catch (InterruptedException e)
+		{
+			// Closing
+		}
+		finally
+		{
+			sockets.remove(socket);
+			close(socket);
+		}
+	}
+
+	// Request line of the next request, its headers are skipped
+	static String readRequest(InputStream in) throws IOException
+	{
+		String first = readLine(in);
+		if (first == null) return null;
+
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0)
+		{
+			// Headers don't matter here
+		}
+		return first;
+	}
+
+	static String readLine(InputStream in) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n')
+		{
+			if (c < 0) return line.length() > 0 ? line.toString() : null;
+			if (c != '\r') line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	void respond(String path, OutputStream out) throws IOException, InterruptedException
+	{
+		total.incrementAndGet();
+
+		Matcher m = TILE_PATH.matcher(path);
+		if (!m.matches())
+		{
+			send(out, 404, "Not Found", null);
+			return;
+		}
+
+		AtomicInteger count = requests.get(path);
+		if (count == null)
+		{
+			requests.putIfAbsent(path, new AtomicInteger());
+			count = requests.get(path);
+		}
+		count.incrementAndGet();
+
+		if (isThrottled())
+		{
+			throttled.incrementAndGet();
+			send(out, 429, "Too Many Requests", null);
+			return;
+		}
+
+		long wait;
+		double roll;
+		synchronized (random)
+		{
+			wait = latency.next(random);
+			roll = random.nextDouble();
+		}
+		if (wait > 0) Thread.sleep(wait);
+
+		int z = Integer.parseInt(m.group(1)), x = Integer.parseInt(m.group(2)), y = Integer.parseInt(m.group(3));
+		if (missing(z, x, y))
+		{
+			notFound.incrementAndGet();
+			send(out, 404, "Not Found", null);
+			return;
+		}
+
+		if (roll < errorRate)
+		{
+			errors.incrementAndGet();
+			send(out, 500, "Internal Server Error", null);
+			return;
+		}
+
+		byte[] tile = tiles.get(path);
+		if (tile == null)
+		{
+			tile = tile(z, x, y, detail);
+			tiles.put(path, tile);
+		}
+		send(out, 200, "OK", tile);
+	}
+
+	synchronized boolean isThrottled()
+	{
+		if (maxRequestsPerSecond <= 0) return false;
+
+		long now = System.currentTimeMillis() / 1000;
+		if (now != second)
+		{
+			second = now;
+			secondRequests = 0;
+		}
+		return ++secondRequests > maxRequestsPerSecond;
+	}
+
+	// The same tiles are missing every run
+	boolean missing(int z, int x, int y)
+	{
+		return new Random(key(z, x, y)).nextDouble() < notFoundRate;
+	}
+
+	void send(OutputStream out, int status, String reason, byte[] body) throws IOException, InterruptedException
+	{
+		if (body == null) body = (reason + "\n").getBytes("US-ASCII");
+
+		String header = "HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: " + (status == 200 ? "image/png" : "text/plain")
+				+ "\r\nContent-Length: " + body.length + (status == 429 ? "\r\nRetry-After: 1" : "") + "\r\n\r\n";
+		out.write(header.getBytes("US-ASCII"));
+
+		int speed = bodyBytesPerSecond;
+		if (speed <= 0)
+		{
+			out.write(body);
+		}
+		else
+		{
+			// Chunks of a tenth of a second
+			int chunk = Math.max(speed / 10, 1);
+			for (int i = 0; i < body.length; i += chunk)
+			{
+				out.write(body, i, Math.min(chunk, body.length - i));
+				out.flush();
+				Thread.sleep(100);
+			}
+		}
+		out.flush();
+	}
+
+	static long key(int z, int x, int y)
+	{
+		return ((long) z << 58) ^ ((long) x << 29) ^ y;
+	}
+
+	// A 256x256 PNG colored after z/x/y, detail percent of the rows are
+	// noise which doesn't compress
+	static byte[] tile(int z, int x, int y, int detail)
+	{
+		Random r = new Random(key(z, x, y));
+		int red = r.nextInt(256), green = r.nextInt(256), blue = r.nextInt(256);
+
+		// Each row starts with its filter type, 0 = none
+		byte[] raw = new byte[256 * PngWriter.rowSize(256)];
+		for (int row = 0, i = 0; row < 256; row++)
+		{
+			raw[i++] = 0;
+			boolean noise = r.nextInt(100) < detail;
+			for (int col = 0; col < 256; col++)
+			{
+				boolean grid = row % 64 == 0 || col % 64 == 0;
+				raw[i++] = (byte) (noise ? r.nextInt(256) : grid ? 0 : red);
+				raw[i++] = (byte) (noise ? r.nextInt(256) : grid ? 0 : green);
+				raw[i++] = (byte) (noise ? r.nextInt(256) : grid ? 0 : blue);
+			}
+		}
+
+		return PngWriter.rgb(256, 256, raw, Deflater.DEFAULT_COMPRESSION);
+	}
+}
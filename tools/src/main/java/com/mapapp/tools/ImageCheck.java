@@ -0,0 +1,87 @@
+package com.mapapp.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Tells whether a tile image is complete and can be decoded.
+ * Half written downloads usually leave truncated PNGs, those are caught by
+ * the missing IEND chunk even when the decoder would accept them.
+ */
+public class ImageCheck
+{
+	private final static byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private final static byte[] PNG_END = { 0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82 };
+
+	public static boolean isValid(byte[] img)
+	{
+		if (img == null || img.length < 12) return false;
+
+		if (startsWith(img, PNG_SIGNATURE))
+		{
+			return endsWith(img, PNG_END) && decodes(img);
+		}
+		else if ((img[0] & 0xFF) == 0xFF && (img[1] & 0xFF) == 0xD8)
+		{
+			// JPEG, must end with the EOI marker
+			return (img[img.length - 2] & 0xFF) == 0xFF && (img[img.length - 1] & 0xFF) == 0xD9 && decodes(img);
+		}
+		else if (isWebP(img))
+		{
+			// No WebP decoder in the JDK, check the RIFF size instead
+			long riffSize = (img[4] & 0xFFL) | (img[5] & 0xFFL) << 8 | (img[6] & 0xFFL) << 16 | (img[7] & 0xFFL) << 24;
+			return riffSize + 8 == img.length;
+		}
+
+		// Not an image format we know
+		return false;
+	}
+
+	public static boolean isWebP(byte[] img)
+	{
+		return img.length >= 12 && img[0] == 'R' && img[1] == 'I' && img[2] == 'F' && img[3] == 'F' && img[8] == 'W' && img[9] == 'E'
+				&& img[10] == 'B' && img[11] == 'P';
+	}
+
+	// MIME type of the image, from its first bytes
+	public static String contentType(byte[] img)
+	{
+		if (img.length >= PNG_SIGNATURE.length && startsWith(img, PNG_SIGNATURE)) return "image/png";
+		if (img.length >= 2 && (img[0] & 0xFF) == 0xFF && (img[1] & 0xFF) == 0xD8) return "image/jpeg";
+		if (isWebP(img)) return "image/webp";
+		return "application/octet-stream";
+	}
+
+	static boolean decodes(byte[] img)
+	{
+		try
+		{
+			return ImageIO.read(new ByteArrayInputStream(img)) != null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			return false;
+		}
+	}
+
+	static boolean startsWith(byte[] img, byte[] prefix)
+	{
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (img[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	static boolean endsWith(byte[] img, byte[] suffix)
+	{
+		int start = img.length - suffix.length;
+		for (int i = 0; i < suffix.length; i++)
+		{
+			if (img[start + i] != suffix[i]) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,139 @@
+package com.mapapp.tools;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Writes the tiles of a sqlitedb to a new MBTiles file, the reverse of
+ * MBTilesImporter.
+ */
+public class MBTilesExporter extends TilePipeline
+{
+	private final Connection source;
+	private final Connection target;
+
+	private PreparedStatement insertTile;
+
+	// Extent written to the metadata
+	private int minZoom = Integer.MAX_VALUE, maxZoom = Integer.MIN_VALUE;
+	private String format;
+
+	public MBTilesExporter(Connection source, Connection target, int threads)
+	{
+		super(threads);
+		this.source = source;
+		this.target = target;
+	}
+
+	public static long run(String sqlitedb, String mbtiles, int threads) throws Exception
+	{
+		new File(mbtiles).delete();
+
+		try (Connection source = TileDB.openReadOnly(sqlitedb); Connection target = DriverManager.getConnection("jdbc:sqlite:" + mbtiles))
+		{
+			try (Statement st = target.createStatement())
+			{
+				st.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+				st.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+			}
+			TileDB.bulkMode(target);
+
+			MBTilesExporter exporter = new MBTilesExporter(source, target, threads);
+			long count = exporter.run();
+
+			// Index created last, much faster than maintaining it while loading
+			TileDB.update(target, "CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+			exporter.writeMetadata(new File(sqlitedb).getName().replaceFirst("\\.sqlitedb$", ""));
+			return count;
+		}
+	}
+
+	@Override
+	public long run() throws Exception
+	{
+		insertTile = target.prepareStatement("INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+		target.setAutoCommit(false);
+		try
+		{
+			return super.run();
+		}
+		finally
+		{
+			target.setAutoCommit(true);
+			insertTile.close();
+		}
+	}
+
+	@Override
+	protected void read() throws Exception
+	{
+		try (Statement st = source.createStatement();
+				ResultSet rs = st.executeQuery("SELECT t.z, t.x, t.y, " + TileDB.IMAGE_COLUMN + " FROM " + TileDB.TILES_JOIN))
+		{
+			while (rs.next())
+			{
+				emit(new TileRecord(TileDB.zoom(rs.getInt(1)), rs.getInt(2), rs.getInt(3), rs.getBytes(4)));
+			}
+		}
+	}
+
+	@Override
+	protected void transform(TileRecord tile)
+	{
+		tile.y = TileRecord.flipY(tile.zoom, tile.y);
+	}
+
+	@Override
+	protected void write(List<TileRecord> batch) throws Exception
+	{
+		for (TileRecord tile : batch)
+		{
+			insertTile.setInt(1, tile.zoom);
+			insertTile.setInt(2, tile.x);
+			insertTile.setInt(3, tile.y);
+			insertTile.setBytes(4, tile.image);
+			insertTile.addBatch();
+
+			minZoom = Math.min(minZoom, tile.zoom);
+			maxZoom = Math.max(maxZoom, tile.zoom);
+			if (format == null) format = ImageCheck.isWebP(tile.image) ? "webp" : (tile.image[0] & 0xFF) == 0xFF ? "jpg" : "png";
+		}
+
+		insertTile.executeBatch();
+		target.commit();
+	}
+
+	void writeMetadata(String name) throws Exception
+	{
+		if (format == null) return;
+
+		// Bounds from the extent of the most detailed zoom, rows are in TMS order
+		String bounds;
+		try (Statement st = target.createStatement();
+				ResultSet rs = st.executeQuery("SELECT MIN(tile_column), MAX(tile_column), MIN(tile_row), MAX(tile_row) FROM tiles WHERE zoom_level = "
+						+ maxZoom))
+		{
+			rs.next();
+			bounds = TileRecord.tileLon(maxZoom, rs.getInt(1)) + "," + TileRecord.tileLat(maxZoom, TileRecord.flipY(maxZoom, rs.getInt(3)) + 1)
+					+ "," + TileRecord.tileLon(maxZoom, rs.getInt(2) + 1) + "," + TileRecord.tileLat(maxZoom, TileRecord.flipY(maxZoom, rs.getInt(4)));
+		}
+
+		String[][] metadata = { { "name", name }, { "type", "baselayer" }, { "version", "1.0" }, { "format", format },
+				{ "minzoom", Integer.toString(minZoom) }, { "maxzoom", Integer.toString(maxZoom) }, { "bounds", bounds } };
+
+		try (PreparedStatement st = target.prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)"))
+		{
+			for (String[] entry : metadata)
+			{
+				st.setString(1, entry[0]);
+				st.setString(2, entry[1]);
+				st.executeUpdate();
+			}
+		}
+	}
+}
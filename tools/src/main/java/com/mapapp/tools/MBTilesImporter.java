@@ -0,0 +1,104 @@
+package com.mapapp.tools;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import com.mapapp.core.TileHash;
+
+/**
+ * Loads an MBTiles file into a sqlitedb.
+ * MBTiles rows are zoom_level/tile_column/tile_row with TMS y, they are
+ * stored as z = 17 - zoom with XYZ y and deduplicated images.
+ */
+public class MBTilesImporter extends TilePipeline
+{
+	private final String source;
+	private final Connection target;
+
+	private PreparedStatement insertImage, insertTile;
+
+	public MBTilesImporter(String source, Connection target, int threads)
+	{
+		super(threads);
+		this.source = source;
+		this.target = target;
+	}
+
+	public static long run(String mbtiles, String sqlitedb, int threads) throws Exception
+	{
+		// An existing database keeps its journal, a crash mustn't lose it
+		boolean created = TileDB.isNew(sqlitedb);
+		try (Connection target = TileDB.open(sqlitedb))
+		{
+			if (created) TileDB.bulkMode(target);
+			long count = new MBTilesImporter(mbtiles, target, threads).run();
+			TileDB.updateInfo(target);
+			return count;
+		}
+	}
+
+	@Override
+	public long run() throws Exception
+	{
+		insertImage = target.prepareStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+		insertTile = target.prepareStatement("INSERT OR REPLACE INTO tiles (x, y, z, s, hash) VALUES (?, ?, ?, 0, ?)");
+		target.setAutoCommit(false);
+		try
+		{
+			return super.run();
+		}
+		finally
+		{
+			target.setAutoCommit(true);
+			insertImage.close();
+			insertTile.close();
+		}
+	}
+
+	@Override
+	protected void read() throws Exception
+	{
+		// The source has its own connection, it's only used by the reader thread
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + source);
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles"))
+		{
+			while (rs.next())
+			{
+				emit(new TileRecord(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getBytes(4)));
+			}
+		}
+	}
+
+	@Override
+	protected void transform(TileRecord tile)
+	{
+		tile.y = TileRecord.flipY(tile.zoom, tile.y);
+		tile.hash = TileHash.hash(tile.image);
+	}
+
+	@Override
+	protected void write(List<TileRecord> batch) throws Exception
+	{
+		for (TileRecord tile : batch)
+		{
+			insertImage.setString(1, tile.hash);
+			insertImage.setBytes(2, tile.image);
+			insertImage.addBatch();
+
+			insertTile.setInt(1, tile.x);
+			insertTile.setInt(2, tile.y);
+			insertTile.setInt(3, TileDB.z(tile.zoom));
+			insertTile.setString(4, tile.hash);
+			insertTile.addBatch();
+		}
+
+		insertImage.executeBatch();
+		insertTile.executeBatch();
+		target.commit();
+	}
+}
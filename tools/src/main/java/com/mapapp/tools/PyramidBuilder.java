@@ -0,0 +1,436 @@
+package com.mapapp.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.sqlite.Function;
+
+import com.mapapp.core.Morton;
+import com.mapapp.core.PngWriter;
+import com.mapapp.core.TileHash;
+
+/**
+ * Builds the missing lower zoom levels of a tile database, each parent
+ * tile is its four children scaled down by 2.
+ * Levels are built bottom-up, one after the other since a level is the
+ * source of the next one. Inside a level the parents are handled in Morton
+ * order, where the children of a parent are next to each other, a chunk at
+ * a time: the chunk's children are read, merged in parallel on a fork-join
+ * pool and written in one transaction. Only one chunk is ever in memory.
+ * The parents come from a cursor SQLite sorts by Morton code, spilling to
+ * its temporary files on large levels, and whether a parent exists already
+ * is asked for the parents of a chunk only.
+ */
+public class PyramidBuilder
+{
+	// Parents per chunk, at most 4 times as many child images are in memory
+	final static int CHUNK_SIZE = 256;
+
+	// Parents merged by a single fork-join task
+	final static int TASK_SIZE = 8;
+
+	final static int TILE_SIZE = 256;
+
+	private final Connection conn;
+	private final ForkJoinPool pool;
+	private final PrintStream out;
+
+	private PreparedStatement selectChild, selectTile, insertImage, insertTile;
+
+	public PyramidBuilder(Connection conn, int threads, PrintStream out)
+	{
+		this.conn = conn;
+		this.pool = new ForkJoinPool(threads);
+		this.out = out;
+	}
+
+	// Builds every level from the most detailed one down to minZoom
+	public void build(int minZoom) throws Exception
+	{
+		int maxZoom = TileDB.zoom((int) TileDB.queryLong(conn, "SELECT MIN(z) FROM tiles"));
+
+		// morton(x, y) for SQL, sorting a level along the Z curve
+		Function.create(conn, "morton", new Function()
+		{
+			@Override
+			protected void xFunc() throws SQLException
+			{
+				result(Morton.encode(value_int(0), value_int(1)));
+			}
+		});
+
+		selectChild = conn.prepareStatement("SELECT " + TileDB.IMAGE_COLUMN + " FROM " + TileDB.TILES_JOIN
+				+ " WHERE t.z = ? AND t.x = ? AND t.y = ? ORDER BY t.rowid DESC LIMIT 1");
+		selectTile = conn.prepareStatement("SELECT 1 FROM tiles WHERE z = ? AND x = ? AND y = ? LIMIT 1");
+		insertImage = conn.prepareStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+		insertTile = conn.prepareStatement("INSERT OR REPLACE INTO tiles (x, y, z, s, hash) VALUES (?, ?, ?, 0, ?)");
+		try
+		{
+			for (int zoom = maxZoom - 1; zoom >= minZoom; zoom--)
+			{
+				long start = System.currentTimeMillis();
+				int count = buildLevel(zoom);
+				out.printf("zoom %d: %d tiles built in %d ms%n", zoom, count, System.currentTimeMillis() - start);
+			}
+			TileDB.updateInfo(conn);
+		}
+		finally
+		{
+			selectChild.close();
+			selectTile.close();
+			insertImage.close();
+			insertTile.close();
+			Function.destroy(conn, "morton");
+			pool.shutdown();
+		}
+	}
+
+	int buildLevel(int zoom) throws Exception
+	{
+		// Parents of the children, in Morton order, a chunk of them at a time
+		long[] chunk = new long[CHUNK_SIZE];
+		int size = 0, count = 0;
+
+		try (PreparedStatement st = conn.prepareStatement("SELECT DISTINCT morton(x >> 1, y >> 1) AS parent FROM tiles WHERE z = ? ORDER BY parent"))
+		{
+			st.setInt(1, TileDB.z(zoom + 1));
+			try (ResultSet rs = st.executeQuery())
+			{
+				while (rs.next())
+				{
+					chunk[size++] = rs.getLong(1);
+					if (size < CHUNK_SIZE) continue;
+
+					count += buildMissing(zoom, chunk, size);
+					size = 0;
+				}
+			}
+		}
+		if (size > 0) count += buildMissing(zoom, chunk, size);
+
+		return count;
+	}
+
+	// Builds the first size parents of chunk that aren't in the database
+	int buildMissing(int zoom, long[] chunk, int size) throws Exception
+	{
+		int count = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (!exists(zoom, chunk[i])) chunk[count++] = chunk[i];
+		}
+
+		if (count > 0) buildChunk(zoom, Arrays.copyOf(chunk, count));
+		return count;
+	}
+
+	boolean exists(int zoom, long code) throws SQLException
+	{
+		selectTile.setInt(1, TileDB.z(zoom));
+		selectTile.setInt(2, Morton.x(code));
+		selectTile.setInt(3, Morton.y(code));
+		try (ResultSet rs = selectTile.executeQuery())
+		{
+			return rs.next();
+		}
+	}
+
+	void buildChunk(final int zoom, final long[] chunk) throws Exception
+	{
+		// Children of the chunk, 4 per parent in Morton order, null if missing
+		final byte[][] images = new byte[chunk.length * 4][];
+		for (int i = 0; i < chunk.length; i++)
+		{
+			for (int c = 0; c < 4; c++)
+				images[i * 4 + c] = readChild(zoom + 1, (chunk[i] << 2) | c);
+		}
+
+		final byte[][] results = new byte[chunk.length][];
+		pool.invoke(new MergeTask(images, results, 0, chunk.length));
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try
+		{
+			for (int i = 0; i < chunk.length; i++)
+			{
+				if (results[i] == null) continue;
+
+				String hash = TileHash.hash(results[i]);
+				insertImage.setString(1, hash);
+				insertImage.setBytes(2, results[i]);
+				insertImage.addBatch();
+
+				insertTile.setInt(1, Morton.x(chunk[i]));
+				insertTile.setInt(2, Morton.y(chunk[i]));
+				insertTile.setInt(3, TileDB.z(zoom));
+				insertTile.setString(4, hash);
+				insertTile.addBatch();
+			}
+			insertImage.executeBatch();
+			insertTile.executeBatch();
+			conn.commit();
+		}
+		catch (SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		finally
+		{
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	byte[] readChild(int zoom, long code) throws SQLException
+	{
+		selectChild.setInt(1, TileDB.z(zoom));
+		selectChild.setInt(2, Morton.x(code));
+		selectChild.setInt(3, Morton.y(code));
+		try (ResultSet rs = selectChild.executeQuery())
+		{
+			return rs.next() ? rs.getBytes(1) : null;
+		}
+	}
+
+	// Merges parents [from, to) of a chunk, split until small enough
+	static class MergeTask extends RecursiveAction
+	{
+		final byte[][] images, results;
+		final int from, to;
+
+		MergeTask(byte[][] images, byte[][] results, int from, int to)
+		{
+			this.images = images;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= TASK_SIZE)
+			{
+				for (int i = from; i < to; i++)
+					results[i] = merge(images, i * 4);
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new MergeTask(images, results, from, mid), new MergeTask(images, results, mid, to));
+		}
+	}
+
+	// Scales the 4 children starting at first down into one tile.
+	// Children in Morton order are top-left, top-right, bottom-left,
+	// bottom-right. Missing or broken children leave a transparent quarter.
+	// The parent is written like the children: children of 256 colors at
+	// most make a paletted parent, otherwise it's RGB unless a pixel is
+	// transparent. An ARGB parent of paletted tiles is 4 times larger
+	static byte[] merge(byte[][] images, int first)
+	{
+		BufferedImage parent = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		int half = TILE_SIZE / 2;
+		boolean any = false;
+		boolean opaque = true;
+
+		// How often each color is used by the children, null once a child
+		// has more than 256 colors
+		HashMap<Integer, Integer> childColors = new HashMap<Integer, Integer>();
+
+		for (int c = 0; c < 4; c++)
+		{
+			BufferedImage child = decode(images[first + c]);
+			if (child == null)
+			{
+				// The quarter keeps the transparent color
+				opaque = false;
+				if (childColors != null) childColors.put(0, half * half * 4);
+				continue;
+			}
+			any = true;
+
+			if (childColors != null && !(child.getColorModel() instanceof IndexColorModel) && !fewColors(child)) childColors = null;
+
+			int offsetX = (c & 1) * half, offsetY = (c >> 1) * half;
+			int w = Math.min(child.getWidth(), TILE_SIZE), h = Math.min(child.getHeight(), TILE_SIZE);
+			if (w < TILE_SIZE || h < TILE_SIZE) opaque = false;
+			int[] row0 = new int[w], row1 = new int[w];
+
+			// 2x2 box filter, averages each channel of four pixels
+			for (int y = 0; y + 1 < h; y += 2)
+			{
+				child.getRGB(0, y, w, 1, row0, 0, w);
+				child.getRGB(0, y + 1, w, 1, row1, 0, w);
+				for (int x = 0; x + 1 < w; x += 2)
+				{
+					int a = row0[x], b = row0[x + 1], cc = row1[x], d = row1[x + 1];
+					if (childColors != null)
+					{
+						count(childColors, a);
+						count(childColors, b);
+						count(childColors, cc);
+						count(childColors, d);
+					}
+					int argb = 0;
+					for (int shift = 0; shift < 32; shift += 8)
+					{
+						int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((cc >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+						argb |= ((sum + 2) >> 2) << shift;
+					}
+					if ((argb >>> 24) != 0xFF) opaque = false;
+					parent.setRGB(offsetX + x / 2, offsetY + y / 2, argb);
+				}
+			}
+		}
+
+		if (!any) return null;
+
+		int[] pixels = parent.getRGB(0, 0, TILE_SIZE, TILE_SIZE, null, 0, TILE_SIZE);
+		byte[] indexed = indexed(pixels, childColors);
+		if (indexed != null) return indexed;
+
+		if (opaque)
+		{
+			BufferedImage rgb = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+			rgb.setRGB(0, 0, TILE_SIZE, TILE_SIZE, pixels, 0, TILE_SIZE);
+			parent = rgb;
+		}
+
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(parent, "png", out);
+			return out.toByteArray();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	// PNG of the pixels with a palette of their colors if they have 256 at
+	// most. With more, averaging blended the colors of the children: the
+	// 256 colors the children use most make the palette and every pixel
+	// takes the closest. null without childColors
+	static byte[] indexed(int[] pixels, HashMap<Integer, Integer> childColors)
+	{
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int p : pixels)
+		{
+			count(counts, p);
+		}
+		if (counts.size() > 256)
+		{
+			if (childColors == null) return null;
+			counts = childColors;
+		}
+
+		ArrayList<Map.Entry<Integer, Integer>> colors = new ArrayList<Map.Entry<Integer, Integer>>(counts.entrySet());
+		Collections.sort(colors, new Comparator<Map.Entry<Integer, Integer>>()
+		{
+			@Override
+			public int compare(Map.Entry<Integer, Integer> a, Map.Entry<Integer, Integer> b)
+			{
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		int[] palette = new int[Math.min(colors.size(), 256)];
+		HashMap<Integer, Integer> index = new HashMap<Integer, Integer>();
+		for (int i = 0; i < palette.length; i++)
+		{
+			palette[i] = colors.get(i).getKey();
+			index.put(palette[i], i);
+		}
+
+		byte[] indices = new byte[pixels.length];
+		for (int p = 0; p < pixels.length; p++)
+		{
+			Integer k = index.get(pixels[p]);
+			if (k == null)
+			{
+				k = closest(palette, pixels[p]);
+				index.put(pixels[p], k);
+			}
+			indices[p] = (byte) (int) k;
+		}
+		return PngWriter.indexed(TILE_SIZE, TILE_SIZE, palette, indices, Deflater.BEST_COMPRESSION);
+	}
+
+	static void count(HashMap<Integer, Integer> counts, int color)
+	{
+		Integer count = counts.get(color);
+		counts.put(color, count == null ? 1 : count + 1);
+	}
+
+	static boolean fewColors(BufferedImage image)
+	{
+		HashSet<Integer> colors = new HashSet<Integer>();
+		for (int y = 0; y < image.getHeight(); y++)
+		{
+			for (int x = 0; x < image.getWidth(); x++)
+			{
+				if (colors.add(image.getRGB(x, y)) && colors.size() > 256) return false;
+			}
+		}
+		return true;
+	}
+
+	// Index of the color of palette nearest to color, by the distance of
+	// the channels
+	static int closest(int[] palette, int color)
+	{
+		int best = 0;
+		long bestDistance = Long.MAX_VALUE;
+		for (int i = 0; i < palette.length; i++)
+		{
+			long distance = 0;
+			for (int shift = 0; shift < 32; shift += 8)
+			{
+				int d = ((palette[i] >>> shift) & 0xFF) - ((color >>> shift) & 0xFF);
+				distance += d * d;
+			}
+			if (distance < bestDistance)
+			{
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	static BufferedImage decode(byte[] image)
+	{
+		if (image == null) return null;
+		try
+		{
+			return ImageIO.read(new ByteArrayInputStream(image));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+}
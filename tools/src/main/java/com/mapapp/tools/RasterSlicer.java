@@ -0,0 +1,306 @@
+package com.mapapp.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileMath;
+
+/**
+ * Cuts a large georeferenced image (scanned map, orthophoto) into Web
+ * Mercator tiles of the most detailed zoom, the lower zooms are then built
+ * by PyramidBuilder.
+ *
+ * The source is expected in plain lon/lat (equirectangular) with known
+ * bounds. It's never loaded whole: tiles are cut by blocks, for each block
+ * only the source window under it is decoded through the ImageIO region
+ * reader, subsampled so it's never much larger than the block itself.
+ * Peak memory depends on the block size, not on the source size. Tiles of a
+ * block are resampled in parallel and written in one transaction.
+ *
+ * Region reads are cheap for tiled formats (TIFF), for PNG and JPEG the
+ * reader still has to go through the rows above the window.
+ */
+public class RasterSlicer
+{
+	final static int TILE_SIZE = 256;
+
+	// Tiles per block side, a block is 8x8 tiles or 2048x2048 pixels
+	final static int BLOCK = 8;
+
+	private final File source;
+	private final double west, north, east, south;
+	private final Connection conn;
+	private final ExecutorService pool;
+	private final PrintStream out;
+
+	private int sourceWidth, sourceHeight;
+
+	public RasterSlicer(File source, double west, double north, double east, double south, Connection conn, int threads, PrintStream out)
+	{
+		this.source = source;
+		this.west = west;
+		this.north = north;
+		this.east = east;
+		this.south = south;
+		this.conn = conn;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.out = out;
+	}
+
+	// Smallest zoom level whose pixels are at least as fine as the source's
+	public int nativeZoom() throws IOException
+	{
+		double degreesPerPixel = (east - west) / sourceWidth;
+		int zoom = (int) Math.ceil(Math.log(360.0 / (TILE_SIZE * degreesPerPixel)) / Math.log(2));
+		return Math.max(0, Math.min(zoom, TileDB.Z_BASE));
+	}
+
+	// Cuts the source at maxZoom (its native zoom if < 0) and builds the
+	// levels down to minZoom. Returns the number of tiles cut.
+	public int run(int minZoom, int maxZoom) throws Exception
+	{
+		try (ImageInputStream stream = ImageIO.createImageInputStream(source))
+		{
+			if (stream == null) throw new IOException("Can't read " + source);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) throw new IOException("Unknown image format " + source);
+
+			ImageReader reader = readers.next();
+			reader.setInput(stream, false, true);
+			try
+			{
+				sourceWidth = reader.getWidth(0);
+				sourceHeight = reader.getHeight(0);
+				if (maxZoom < 0) maxZoom = nativeZoom();
+
+				int count = cut(reader, maxZoom);
+				out.printf("zoom %d: %d tiles cut from %dx%d pixels%n", maxZoom, count, sourceWidth, sourceHeight);
+
+				if (minZoom < maxZoom) new PyramidBuilder(conn, Runtime.getRuntime().availableProcessors(), out).build(minZoom);
+				return count;
+			}
+			finally
+			{
+				reader.dispose();
+				pool.shutdown();
+			}
+		}
+	}
+
+	int cut(ImageReader reader, int zoom) throws Exception
+	{
+		// Tiles covering the bounds
+		int firstX = (int) Math.floor(lonToTile(west, zoom)), lastX = (int) Math.ceil(lonToTile(east, zoom)) - 1;
+		int firstY = (int) Math.floor(latToTile(north, zoom)), lastY = (int) Math.ceil(latToTile(south, zoom)) - 1;
+
+		int count = 0;
+		for (int by = firstY; by <= lastY; by += BLOCK)
+		{
+			for (int bx = firstX; bx <= lastX; bx += BLOCK)
+			{
+				count += cutBlock(reader, zoom, bx, by, Math.min(bx + BLOCK - 1, lastX), Math.min(by + BLOCK - 1, lastY));
+			}
+		}
+		return count;
+	}
+
+	// Decoded part of the source, in source pixels scaled by step
+	static class Window
+	{
+		int left, top, step, width, height;
+		int[] pixels;
+	}
+
+	int cutBlock(ImageReader reader, final int zoom, int x0, int y0, int x1, int y1) throws Exception
+	{
+		// Source pixels under the block, one pixel margin for the interpolation
+		double sx0 = lonToSource(TileMath.pixelToLongitude((long) x0 * TILE_SIZE, zoom)) - 1;
+		double sx1 = lonToSource(TileMath.pixelToLongitude((long) (x1 + 1) * TILE_SIZE, zoom)) + 1;
+		double sy0 = latToSource(TileMath.pixelToLatitude((long) y0 * TILE_SIZE, zoom)) - 1;
+		double sy1 = latToSource(TileMath.pixelToLatitude((long) (y1 + 1) * TILE_SIZE, zoom)) + 1;
+
+		Rectangle region = new Rectangle((int) Math.floor(sx0), (int) Math.floor(sy0), 0, 0);
+		region.add(Math.ceil(sx1), Math.ceil(sy1));
+		region = region.intersection(new Rectangle(0, 0, sourceWidth, sourceHeight));
+		if (region.isEmpty()) return 0;
+
+		// Skip source pixels when the source is finer than the tiles
+		int blockPixels = (x1 - x0 + 1) * TILE_SIZE;
+		final Window w = new Window();
+		w.step = Math.max(1, region.width / blockPixels);
+		w.left = region.x;
+		w.top = region.y;
+
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(region);
+		param.setSourceSubsampling(w.step, w.step, 0, 0);
+		BufferedImage image = reader.read(0, param);
+		w.width = image.getWidth();
+		w.height = image.getHeight();
+		w.pixels = image.getRGB(0, 0, w.width, w.height, null, 0, w.width);
+		image = null;
+
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+		for (int y = y0; y <= y1; y++)
+		{
+			for (int x = x0; x <= x1; x++)
+			{
+				final int tx = x, ty = y;
+				results.add(pool.submit(new Callable<byte[]>()
+				{
+					@Override
+					public byte[] call() throws IOException
+					{
+						return cutTile(w, zoom, tx, ty);
+					}
+				}));
+			}
+		}
+
+		return write(zoom, x0, y0, x1, results);
+	}
+
+	// Resamples one tile from the window, null when it's fully transparent
+	byte[] cutTile(Window w, int zoom, int tx, int ty) throws IOException
+	{
+		// Longitude only depends on the column and latitude on the row
+		double[] sx = new double[TILE_SIZE], sy = new double[TILE_SIZE];
+		for (int i = 0; i < TILE_SIZE; i++)
+		{
+			// Centers of the pixels
+			sx[i] = (lonToSource(TileMath.pixelToLongitude((long) tx * TILE_SIZE + i, zoom, 0.5)) - w.left) / w.step - 0.5;
+			sy[i] = (latToSource(TileMath.pixelToLatitude((long) ty * TILE_SIZE + i, zoom, 0.5)) - w.top) / w.step - 0.5;
+		}
+
+		int[] tile = new int[TILE_SIZE * TILE_SIZE];
+		boolean any = false;
+		for (int py = 0; py < TILE_SIZE; py++)
+		{
+			for (int px = 0; px < TILE_SIZE; px++)
+			{
+				int argb = sample(w, sx[px], sy[py]);
+				tile[py * TILE_SIZE + px] = argb;
+				any |= argb != 0;
+			}
+		}
+		if (!any) return null;
+
+		BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		img.setRGB(0, 0, TILE_SIZE, TILE_SIZE, tile, 0, TILE_SIZE);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", bytes);
+		return bytes.toByteArray();
+	}
+
+	// Bilinear interpolation, transparent outside the source
+	static int sample(Window w, double x, double y)
+	{
+		if (x < -0.5 || y < -0.5 || x > w.width - 0.5 || y > w.height - 0.5) return 0;
+
+		int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+		double fx = x - x0, fy = y - y0;
+		int xa = clamp(x0, w.width), xb = clamp(x0 + 1, w.width);
+		int ya = clamp(y0, w.height), yb = clamp(y0 + 1, w.height);
+
+		int a = w.pixels[ya * w.width + xa], b = w.pixels[ya * w.width + xb];
+		int c = w.pixels[yb * w.width + xa], d = w.pixels[yb * w.width + xb];
+
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8)
+		{
+			double top = ((a >>> shift) & 0xFF) * (1 - fx) + ((b >>> shift) & 0xFF) * fx;
+			double bottom = ((c >>> shift) & 0xFF) * (1 - fx) + ((d >>> shift) & 0xFF) * fx;
+			result |= ((int) (top * (1 - fy) + bottom * fy + 0.5) & 0xFF) << shift;
+		}
+		return result;
+	}
+
+	static int clamp(int v, int size)
+	{
+		return Math.max(0, Math.min(v, size - 1));
+	}
+
+	int write(int zoom, int x0, int y0, int x1, List<Future<byte[]>> results) throws Exception
+	{
+		int count = 0;
+		int columns = x1 - x0 + 1;
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (PreparedStatement insertImage = conn.prepareStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+				PreparedStatement insertTile = conn.prepareStatement("INSERT OR REPLACE INTO tiles (x, y, z, s, hash) VALUES (?, ?, ?, 0, ?)"))
+		{
+			for (int i = 0; i < results.size(); i++)
+			{
+				byte[] image = results.get(i).get();
+				if (image == null) continue;
+
+				String hash = TileHash.hash(image);
+				insertImage.setString(1, hash);
+				insertImage.setBytes(2, image);
+				insertImage.addBatch();
+
+				insertTile.setInt(1, x0 + i % columns);
+				insertTile.setInt(2, y0 + i / columns);
+				insertTile.setInt(3, TileDB.z(zoom));
+				insertTile.setString(4, hash);
+				insertTile.addBatch();
+				count++;
+			}
+			insertImage.executeBatch();
+			insertTile.executeBatch();
+			conn.commit();
+		}
+		catch (SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		finally
+		{
+			conn.setAutoCommit(autoCommit);
+		}
+		return count;
+	}
+
+	double lonToSource(double lon)
+	{
+		return (lon - west) / (east - west) * sourceWidth;
+	}
+
+	double latToSource(double lat)
+	{
+		return (north - lat) / (north - south) * sourceHeight;
+	}
+
+	static double lonToTile(double lon, int zoom)
+	{
+		return TileMath.longitudeToPixel(lon, zoom) / TILE_SIZE;
+	}
+
+	static double latToTile(double lat, int zoom)
+	{
+		return TileMath.latitudeToPixel(lat, zoom) / TILE_SIZE;
+	}
+}
@@ -0,0 +1,93 @@
+package com.mapapp.tools;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.mapapp.core.TileBundle;
+
+/**
+ * Looks up tiles of a bundle written by TileBundleWriter, the index is
+ * memory mapped and searched in place. Images are not read here, callers
+ * get their position in the file, e.g. to transferTo them.
+ */
+public class TileBundleReader implements AutoCloseable
+{
+	private final RandomAccessFile file;
+	private final ByteBuffer index;
+	private final int count;
+	private final long dataOffset;
+
+	public TileBundleReader(String path) throws IOException
+	{
+		file = new RandomAccessFile(path, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TileBundle.HEADER_SIZE);
+			if (header.getInt(0) != TileBundle.MAGIC || header.getInt(4) != TileBundle.VERSION)
+			{
+				throw new IOException(path + " is not a tile bundle");
+			}
+
+			count = header.getInt(8);
+			dataOffset = header.getLong(24);
+			index = channel.map(FileChannel.MapMode.READ_ONLY, header.getLong(16), (long) count * TileBundle.ENTRY_SIZE);
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	public static boolean isBundle(String path)
+	{
+		return TileBundle.isBundle(path);
+	}
+
+	// Index entry of the tile, or -1
+	public int find(int zoom, int x, int y)
+	{
+		long key = TileBundle.key(zoom, x, y);
+
+		int low = 0, high = count - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long k = index.getLong(mid * TileBundle.ENTRY_SIZE);
+			if (k < key) low = mid + 1;
+			else if (k > key) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	// Position of the image of the entry in the file
+	public long position(int entry)
+	{
+		return dataOffset + index.getLong(entry * TileBundle.ENTRY_SIZE + 8);
+	}
+
+	public int length(int entry)
+	{
+		return index.getInt(entry * TileBundle.ENTRY_SIZE + 16);
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public FileChannel getChannel()
+	{
+		return file.getChannel();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
@@ -0,0 +1,182 @@
+package com.mapapp.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileHash;
+
+/**
+ * Writes a sqlitedb as a tile bundle, the read only single file format read
+ * by MappedTileStore in the app, see TileBundle for the layout.
+ * Images are written in index order so tiles close on the map are close in
+ * the file, and identical images are written once.
+ */
+public class TileBundleWriter
+{
+	static class Entry
+	{
+		long key;
+		long rowid;
+		String hash;
+		long offset;
+		int length;
+	}
+
+	// Returns the number of tiles written
+	public static int write(Connection conn, String path) throws Exception
+	{
+		List<Entry> entries = readIndex(conn);
+
+		int minZoom = Integer.MAX_VALUE, maxZoom = 0;
+		for (Entry e : entries)
+		{
+			minZoom = Math.min(minZoom, (int) (e.key >>> 58));
+			maxZoom = Math.max(maxZoom, (int) (e.key >>> 58));
+		}
+
+		long dataOffset = TileBundle.HEADER_SIZE + (long) entries.size() * TileBundle.ENTRY_SIZE;
+
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw"))
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			// Data first, the index needs the offsets
+			channel.position(dataOffset);
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			writeImages(conn, entries, data);
+			data.flush();
+
+			channel.position(0);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			out.writeInt(TileBundle.MAGIC);
+			out.writeInt(TileBundle.VERSION);
+			out.writeInt(entries.size());
+			out.writeShort(entries.isEmpty() ? 0 : minZoom);
+			out.writeShort(maxZoom);
+			out.writeLong(TileBundle.HEADER_SIZE);
+			out.writeLong(dataOffset);
+
+			for (Entry e : entries)
+			{
+				out.writeLong(e.key);
+				out.writeLong(e.offset);
+				out.writeInt(e.length);
+			}
+			out.flush();
+
+			return entries.size();
+		}
+	}
+
+	// Keys of all the tiles having an image, sorted
+	// Images larger than MAX_IMAGE_SIZE can't be read back and are left out,
+	// length() of a blob doesn't load it
+	static List<Entry> readIndex(Connection conn) throws Exception
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		try (Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery("SELECT t.z, t.x, t.y, t.rowid, i.hash FROM " + TileDB.TILES_JOIN + " WHERE LENGTH("
+						+ TileDB.IMAGE_COLUMN + ") BETWEEN 1 AND " + TileBundle.MAX_IMAGE_SIZE))
+		{
+			while (rs.next())
+			{
+				Entry e = new Entry();
+				e.key = TileBundle.key(TileDB.zoom(rs.getInt(1)), rs.getInt(2), rs.getInt(3));
+				e.rowid = rs.getLong(4);
+				e.hash = rs.getString(5);
+				entries.add(e);
+			}
+		}
+
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry a, Entry b)
+			{
+				return a.key != b.key ? Long.compare(a.key, b.key) : Long.compare(a.rowid, b.rowid);
+			}
+		});
+
+		// Duplicated tiles, keep the last written one
+		List<Entry> unique = new ArrayList<Entry>(entries.size());
+		for (Entry e : entries)
+		{
+			if (!unique.isEmpty() && unique.get(unique.size() - 1).key == e.key) unique.set(unique.size() - 1, e);
+			else unique.add(e);
+		}
+		return unique;
+	}
+
+	// Writes the images and sets the offset and length of every entry
+	static void writeImages(Connection conn, List<Entry> entries, DataOutputStream data) throws Exception
+	{
+		// Where each distinct image went
+		HashMap<String, Entry> images = new HashMap<String, Entry>();
+		long offset = 0;
+
+		try (PreparedStatement byHash = conn.prepareStatement("SELECT image FROM images WHERE hash = ?");
+				PreparedStatement byRow = conn.prepareStatement("SELECT image FROM tiles WHERE rowid = ?"))
+		{
+			for (Entry e : entries)
+			{
+				Entry same = e.hash != null ? images.get(e.hash) : null;
+				if (same == null)
+				{
+					byte[] image = loadImage(e, byHash, byRow);
+
+					// Old layout rows have no hash, identical images are still shared
+					if (e.hash == null) e.hash = TileHash.hash(image);
+					same = images.get(e.hash);
+
+					if (same == null)
+					{
+						data.write(image);
+						e.offset = offset;
+						e.length = image.length;
+						offset += image.length;
+						images.put(e.hash, e);
+						same = e;
+					}
+				}
+
+				e.offset = same.offset;
+				e.length = same.length;
+			}
+		}
+	}
+
+	static byte[] loadImage(Entry e, PreparedStatement byHash, PreparedStatement byRow) throws Exception
+	{
+		PreparedStatement st;
+		if (e.hash != null)
+		{
+			st = byHash;
+			st.setString(1, e.hash);
+		}
+		else
+		{
+			st = byRow;
+			st.setLong(1, e.rowid);
+		}
+
+		try (ResultSet rs = st.executeQuery())
+		{
+			rs.next();
+			return rs.getBytes(1);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.mapapp.tools;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Removes the garbage left by interrupted downloads and rebuilds the indexes.
+ */
+public class TileCompactor
+{
+	private final Connection conn;
+	private final PrintStream out;
+
+	public TileCompactor(Connection conn, PrintStream out)
+	{
+		this.conn = conn;
+		this.out = out;
+	}
+
+	public void compact() throws SQLException
+	{
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try
+		{
+			// Tiles with no image at all, e.g. the image row was never written
+			report("orphan tiles", TileDB.update(conn,
+					"DELETE FROM tiles WHERE image IS NULL AND (hash IS NULL OR hash NOT IN (SELECT hash FROM images))"));
+
+			// Downloaded tiles are inserted with s = NULL and NULLs are never
+			// equal in the primary key, keep the last written copy of each tile
+			report("duplicate tiles",
+					TileDB.update(conn, "DELETE FROM tiles WHERE rowid NOT IN (SELECT MAX(rowid) FROM tiles GROUP BY x, y, z)"));
+
+			// Shared images no tile uses anymore
+			report("orphan images",
+					TileDB.update(conn, "DELETE FROM images WHERE hash NOT IN (SELECT hash FROM tiles WHERE hash IS NOT NULL)"));
+
+			// fetchTiles filters on one z and ranges of x and y, an index
+			// starting with z serves it much better than the (x,y,z,s) one
+			TileDB.update(conn, "CREATE INDEX IF NOT EXISTS tiles_zxy ON tiles (z, x, y)");
+
+			if (TileDB.hasTable(conn, "info")) TileDB.updateInfo(conn);
+
+			conn.commit();
+		}
+		catch (SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		finally
+		{
+			conn.setAutoCommit(autoCommit);
+		}
+
+		// These can't run inside a transaction
+		TileDB.update(conn, "REINDEX");
+		TileDB.update(conn, "ANALYZE");
+		TileDB.update(conn, "VACUUM");
+		out.println("indexes rebuilt, database vacuumed");
+	}
+
+	void report(String what, int count)
+	{
+		out.printf("removed %d %s%n", count, what);
+	}
+}
@@ -0,0 +1,153 @@
+package com.mapapp.tools;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * JDBC access to the app's sqlitedb files.
+ * Needs the sqlite-jdbc driver (org.xerial:sqlite-jdbc) on the classpath.
+ *
+ * Schema reminder:
+ * tiles(x, y, z, s, image, hash) with z stored as 17 - zoom and y in XYZ order,
+ * images(hash, image) holds the deduplicated images referenced by tiles.hash,
+ * rows written before deduplication still have their image in tiles.image.
+ */
+public class TileDB
+{
+	// Matches the "17 - zoom" used by TilesProvider
+	public final static int Z_BASE = 17;
+
+	// The image of a tile, whatever layout it was stored with
+	public final static String IMAGE_COLUMN = "COALESCE(i.image, t.image)";
+	public final static String TILES_JOIN = "tiles t LEFT JOIN images i ON i.hash = t.hash";
+
+	public static Connection open(String path) throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+		prepare(conn);
+		return conn;
+	}
+
+	// Opens a database only to read it, the file is never changed. What an
+	// older layout lacks is made up in the connection's temporary schema,
+	// which comes first in name lookups: an empty images table and a tiles
+	// view with a null hash. The same queries then work on every layout.
+	public static Connection openReadOnly(String path) throws SQLException
+	{
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		Connection conn = config.createConnection("jdbc:sqlite:" + path);
+		try (Statement st = conn.createStatement())
+		{
+			if (!hasTable(conn, "images")) st.execute("CREATE TEMP TABLE images (hash TEXT PRIMARY KEY, image BLOB)");
+			if (hasTable(conn, "tiles") && !hasColumn(conn, "tiles", "hash"))
+			{
+				st.execute("CREATE TEMP VIEW tiles AS SELECT rowid AS rowid, x, y, z, s, image, NULL AS hash FROM main.tiles");
+			}
+		}
+		catch (SQLException e)
+		{
+			conn.close();
+			throw e;
+		}
+		return conn;
+	}
+
+	// Same as SQLiteTileStore.prepareDB in the app, so both layouts can be queried the same way
+	// An empty file gets the whole schema, android_metadata included since
+	// the app opens databases with the localized collators
+	public static void prepare(Connection conn) throws SQLException
+	{
+		try (Statement st = conn.createStatement())
+		{
+			if (!hasTable(conn, "tiles"))
+			{
+				st.execute("CREATE TABLE tiles (x int, y int, z int, s int, image blob, PRIMARY KEY (x,y,z,s))");
+				st.execute("CREATE INDEX tiles_zxy ON tiles (z, x, y)");
+				st.execute("CREATE TABLE IF NOT EXISTS info (minzoom, maxzoom)");
+				st.execute("CREATE TABLE IF NOT EXISTS android_metadata (locale TEXT)");
+				st.execute("INSERT INTO android_metadata VALUES ('en_US')");
+			}
+			st.execute("CREATE TABLE IF NOT EXISTS images (hash TEXT PRIMARY KEY, image BLOB)");
+			if (!hasColumn(conn, "tiles", "hash")) st.execute("ALTER TABLE tiles ADD COLUMN hash TEXT");
+		}
+	}
+
+	public static boolean hasTable(Connection conn, String table) throws SQLException
+	{
+		try (Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'"))
+		{
+			return rs.next();
+		}
+	}
+
+	public static boolean hasColumn(Connection conn, String table, String column) throws SQLException
+	{
+		try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")"))
+		{
+			while (rs.next())
+			{
+				if (column.equals(rs.getString("name"))) return true;
+			}
+			return false;
+		}
+	}
+
+	public static int update(Connection conn, String sql) throws SQLException
+	{
+		try (Statement st = conn.createStatement())
+		{
+			return st.executeUpdate(sql);
+		}
+	}
+
+	public static long queryLong(Connection conn, String sql) throws SQLException
+	{
+		try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql))
+		{
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	// No database at path yet, open will create it. Only these can be
+	// loaded in bulkMode
+	public static boolean isNew(String path)
+	{
+		return new File(path).length() == 0;
+	}
+
+	// Speeds up bulk loads, a crash leaves a broken file instead of a
+	// consistent one, only use it on files being created
+	public static void bulkMode(Connection conn) throws SQLException
+	{
+		try (Statement st = conn.createStatement())
+		{
+			st.execute("PRAGMA synchronous = OFF");
+			st.execute("PRAGMA journal_mode = MEMORY");
+		}
+	}
+
+	// Sets the zoom range of the info table from the stored tiles
+	public static void updateInfo(Connection conn) throws SQLException
+	{
+		update(conn, "DELETE FROM info");
+		update(conn, "INSERT INTO info SELECT MIN(z), MAX(z) FROM tiles");
+	}
+
+	public static int zoom(int z)
+	{
+		return Z_BASE - z;
+	}
+
+	public static int z(int zoom)
+	{
+		return Z_BASE - zoom;
+	}
+}
@@ -0,0 +1,319 @@
+package com.mapapp.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileDeltaFormat;
+import com.mapapp.core.TileHash;
+
+/**
+ * Delta packages between two versions of a sqlitedb, so refreshing a region
+ * only moves the tiles that changed.
+ *
+ * The format is TileDeltaFormat, read by TileDelta in the app as well. An
+ * image record comes before the first tile using it and only if the old
+ * version doesn't have it already, so a tile that moved or a new sea tile
+ * costs 50 bytes.
+ * A stream cut before END is rejected, nothing of it is applied.
+ */
+public class TileDelta
+{
+	// Counts of the last computed or applied delta
+	public int tiles, deleted, images;
+	public long imageBytes;
+
+	// Tiles with an image in the key order of a version, of duplicated tiles
+	// the last written wins
+	static class Cursor implements AutoCloseable
+	{
+		final Statement st;
+		final ResultSet rs;
+		final PreparedStatement byRow;
+
+		int zoom, x, y;
+		long rowid;
+		String hash;
+		boolean done, pending;
+
+		Cursor(Connection conn) throws SQLException
+		{
+			st = conn.createStatement();
+			rs = st.executeQuery("SELECT z, x, y, hash, rowid FROM tiles ORDER BY z DESC, x, y, rowid");
+			byRow = conn.prepareStatement("SELECT image FROM tiles WHERE rowid = ?");
+			pending = rs.next();
+			advance();
+		}
+
+		void advance() throws SQLException
+		{
+			if (!pending)
+			{
+				done = true;
+				return;
+			}
+
+			zoom = TileDB.zoom(rs.getInt(1));
+			x = rs.getInt(2);
+			y = rs.getInt(3);
+			do
+			{
+				hash = rs.getString(4);
+				rowid = rs.getLong(5);
+			}
+			while ((pending = rs.next()) && TileDB.zoom(rs.getInt(1)) == zoom && rs.getInt(2) == x && rs.getInt(3) == y);
+		}
+
+		long key()
+		{
+			return TileBundle.key(zoom, x, y);
+		}
+
+		// Old layout rows have no hash, their image is hashed
+		String hash() throws SQLException
+		{
+			if (hash == null)
+			{
+				byte[] image = image();
+				hash = image != null ? TileHash.hash(image) : "";
+			}
+			return hash;
+		}
+
+		byte[] image() throws SQLException
+		{
+			byRow.setLong(1, rowid);
+			try (ResultSet image = byRow.executeQuery())
+			{
+				return image.next() ? image.getBytes(1) : null;
+			}
+		}
+
+		int compareTo(Cursor other)
+		{
+			if (zoom != other.zoom) return zoom < other.zoom ? -1 : 1;
+			if (x != other.x) return x < other.x ? -1 : 1;
+			return y < other.y ? -1 : y > other.y ? 1 : 0;
+		}
+
+		@Override
+		public void close() throws SQLException
+		{
+			byRow.close();
+			rs.close();
+			st.close();
+		}
+	}
+
+	public static TileDelta write(String older, String newer, String path) throws Exception
+	{
+		TileDelta delta = new TileDelta();
+		try (Connection a = TileDB.openReadOnly(older); Connection b = TileDB.openReadOnly(newer); OutputStream out = new FileOutputStream(path))
+		{
+			delta.write(a, b, out);
+		}
+		return delta;
+	}
+
+	// Writes what changed from older to newer, both versions are walked
+	// once side by side
+	public void write(Connection older, Connection newer, OutputStream stream) throws IOException, SQLException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(TileDeltaFormat.MAGIC);
+		out.writeInt(TileDeltaFormat.VERSION);
+
+		// Images the receiving side has or was sent
+		HashSet<String> present = new HashSet<String>();
+
+		try (Cursor a = new Cursor(older);
+				Cursor b = new Cursor(newer);
+				PreparedStatement known = older.prepareStatement("SELECT 1 FROM images WHERE hash = ?");
+				PreparedStatement byHash = newer.prepareStatement("SELECT image FROM images WHERE hash = ?"))
+		{
+			while (!a.done || !b.done)
+			{
+				int c = a.done ? 1 : b.done ? -1 : a.compareTo(b);
+				if (c < 0)
+				{
+					out.writeByte(TileDeltaFormat.DELETE);
+					out.writeLong(a.key());
+					deleted++;
+					a.advance();
+				}
+				else if (c > 0)
+				{
+					writeTile(b, out, present, known, byHash);
+					b.advance();
+				}
+				else
+				{
+					if (!a.hash().equals(b.hash())) writeTile(b, out, present, known, byHash);
+					a.advance();
+					b.advance();
+				}
+			}
+		}
+
+		out.writeByte(TileDeltaFormat.END);
+		out.writeInt(tiles + deleted);
+		out.flush();
+	}
+
+	void writeTile(Cursor b, DataOutputStream out, HashSet<String> present, PreparedStatement known, PreparedStatement byHash)
+			throws IOException, SQLException
+	{
+		String hash = b.hash();
+		if (hash.isEmpty()) return;
+
+		if (!present.contains(hash))
+		{
+			boolean has;
+			known.setString(1, hash);
+			try (ResultSet rs = known.executeQuery())
+			{
+				has = rs.next();
+			}
+
+			if (!has)
+			{
+				byte[] image = null;
+				byHash.setString(1, hash);
+				try (ResultSet rs = byHash.executeQuery())
+				{
+					if (rs.next()) image = rs.getBytes(1);
+				}
+				if (image == null) image = b.image();
+
+				out.writeByte(TileDeltaFormat.IMAGE);
+				out.writeUTF(hash);
+				out.writeInt(image.length);
+				out.write(image);
+				images++;
+				imageBytes += image.length;
+			}
+			present.add(hash);
+		}
+
+		out.writeByte(TileDeltaFormat.TILE);
+		out.writeLong(b.key());
+		out.writeUTF(hash);
+		tiles++;
+	}
+
+	public static TileDelta apply(String db, String path) throws Exception
+	{
+		TileDelta delta = new TileDelta();
+		try (Connection conn = TileDB.open(db); InputStream in = new FileInputStream(path))
+		{
+			delta.apply(conn, in);
+		}
+		return delta;
+	}
+
+	// Streams a delta into the database in one transaction, readers keep
+	// seeing the old version until it's complete
+	public void apply(Connection conn, InputStream stream) throws IOException, SQLException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		if (in.readInt() != TileDeltaFormat.MAGIC) throw new IOException("Not a tile delta");
+		if (in.readInt() != TileDeltaFormat.VERSION) throw new IOException("Unsupported tile delta version");
+
+		// Images of the delta or already checked, no need to look them up
+		HashSet<String> present = new HashSet<String>();
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (PreparedStatement insertImage = conn.prepareStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+				PreparedStatement hasImage = conn.prepareStatement("SELECT 1 FROM images WHERE hash = ?");
+				PreparedStatement deleteTile = conn.prepareStatement("DELETE FROM tiles WHERE x = ? AND y = ? AND z = ?");
+				PreparedStatement insertTile = conn.prepareStatement("INSERT INTO tiles (x, y, z, s, hash) VALUES (?, ?, ?, 0, ?)");
+				Statement st = conn.createStatement())
+		{
+			int type;
+			while ((type = in.readByte()) != TileDeltaFormat.END)
+			{
+				if (type == TileDeltaFormat.IMAGE)
+				{
+					String hash = in.readUTF();
+					byte[] image = new byte[in.readInt()];
+					in.readFully(image);
+					if (!TileHash.hash(image).equals(hash)) throw new IOException("Corrupt image " + hash);
+
+					insertImage.setString(1, hash);
+					insertImage.setBytes(2, image);
+					insertImage.executeUpdate();
+					present.add(hash);
+					images++;
+					imageBytes += image.length;
+				}
+				else if (type == TileDeltaFormat.TILE || type == TileDeltaFormat.DELETE)
+				{
+					long key = in.readLong();
+					int z = TileDB.z(TileBundle.zoom(key)), x = TileBundle.x(key), y = TileBundle.y(key);
+
+					deleteTile.setInt(1, x);
+					deleteTile.setInt(2, y);
+					deleteTile.setInt(3, z);
+					deleteTile.executeUpdate();
+
+					if (type == TileDeltaFormat.DELETE)
+					{
+						deleted++;
+						continue;
+					}
+
+					String hash = in.readUTF();
+					if (!present.contains(hash))
+					{
+						hasImage.setString(1, hash);
+						try (ResultSet rs = hasImage.executeQuery())
+						{
+							if (!rs.next()) throw new IOException("Delta doesn't match the database, missing image " + hash);
+						}
+						present.add(hash);
+					}
+
+					insertTile.setInt(1, x);
+					insertTile.setInt(2, y);
+					insertTile.setInt(3, z);
+					insertTile.setString(4, hash);
+					insertTile.executeUpdate();
+					tiles++;
+				}
+				else
+				{
+					throw new IOException("Corrupt tile delta");
+				}
+			}
+
+			if (in.readInt() != tiles + deleted) throw new IOException("Corrupt tile delta");
+
+			// Images no tile uses anymore
+			st.executeUpdate("DELETE FROM images WHERE hash NOT IN (SELECT hash FROM tiles WHERE hash IS NOT NULL)");
+			conn.commit();
+		}
+		catch (IOException | SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		finally
+		{
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+}
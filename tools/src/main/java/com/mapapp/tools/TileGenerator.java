@@ -0,0 +1,229 @@
+package com.mapapp.tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.mapapp.core.PngWriter;
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileHash;
+import com.mapapp.core.TileMath;
+
+/**
+ * Writes a synthetic sqlitedb of any size, to try the app and the tools at
+ * the scale of the real packs (millions of tiles).
+ *
+ * Every tile of the zoom levels inside the bounds gets a valid 256x256 PNG.
+ * Sizes follow a log-normal distribution given by its median and 99th
+ * percentile, set by the share of incompressible rows. A share of the
+ * tiles (duplicates) reuse a few common images instead, like sea and
+ * forest do, the first ones being the most common.
+ * Tiles are written the old way with the image in the tiles row, or
+ * deduplicated in the images table with dedup. The same seed gives the
+ * same database whatever the number of threads.
+ */
+public class TileGenerator extends TilePipeline
+{
+	// Number of distinct images the duplicated tiles use
+	final static int COMMON_IMAGES = 16;
+
+	// A row of noise compresses to about its raw size
+	final static int ROW_SIZE = 1 + 256 * 3;
+
+	private final Connection target;
+	private final double west, north, east, south;
+	private final int minZoom, maxZoom;
+	private final long seed;
+	private final double mu, sigma;
+	private final double duplicates;
+	private final boolean dedup;
+	private final byte[][] common = new byte[COMMON_IMAGES][];
+
+	private PreparedStatement insertImage, insertTile;
+
+	public TileGenerator(Connection target, double west, double north, double east, double south, int minZoom, int maxZoom,
+			int sizeMedian, int sizeP99, double duplicates, boolean dedup, long seed, int threads)
+	{
+		super(threads);
+		this.target = target;
+		this.west = west;
+		this.north = north;
+		this.east = east;
+		this.south = south;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.duplicates = duplicates;
+		this.dedup = dedup;
+		this.seed = seed;
+
+		// 2.326 is the 99th percentile of the standard normal distribution
+		mu = Math.log(sizeMedian);
+		sigma = Math.max(0, (Math.log(sizeP99) - mu) / 2.326);
+
+		// Mostly flat, they compress well
+		Random r = new Random(seed);
+		for (int i = 0; i < COMMON_IMAGES; i++)
+			common[i] = png(r, r.nextInt(4));
+	}
+
+	// Number of tiles the bounds hold at the zoom levels
+	public long count()
+	{
+		long count = 0;
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+		{
+			int[] r = range(zoom);
+			count += (long) (r[2] - r[0] + 1) * (r[3] - r[1] + 1);
+		}
+		return count;
+	}
+
+	// First and last column and row inside the bounds
+	int[] range(int zoom)
+	{
+		int max = (1 << zoom) - 1;
+		int x0 = (int) (TileMath.longitudeToPixel(west, zoom) / TileMath.TILE_SIZE);
+		int y0 = (int) (TileMath.latitudeToPixel(north, zoom) / TileMath.TILE_SIZE);
+		int x1 = (int) Math.ceil(TileMath.longitudeToPixel(east, zoom) / TileMath.TILE_SIZE) - 1;
+		int y1 = (int) Math.ceil(TileMath.latitudeToPixel(south, zoom) / TileMath.TILE_SIZE) - 1;
+		return new int[] { clamp(x0, max), clamp(y0, max), clamp(Math.max(x0, x1), max), clamp(Math.max(y0, y1), max) };
+	}
+
+	static int clamp(int v, int max)
+	{
+		return Math.max(0, Math.min(v, max));
+	}
+
+	@Override
+	public long run() throws Exception
+	{
+		insertImage = target.prepareStatement("INSERT OR IGNORE INTO images (hash, image) VALUES (?, ?)");
+		insertTile = target.prepareStatement(dedup ? "INSERT OR REPLACE INTO tiles (x, y, z, s, hash) VALUES (?, ?, ?, 0, ?)"
+				: "INSERT OR REPLACE INTO tiles (x, y, z, s, image) VALUES (?, ?, ?, 0, ?)");
+		target.setAutoCommit(false);
+		try
+		{
+			long count = super.run();
+			target.setAutoCommit(true);
+			TileDB.updateInfo(target);
+			return count;
+		}
+		finally
+		{
+			target.setAutoCommit(true);
+			insertImage.close();
+			insertTile.close();
+		}
+	}
+
+	@Override
+	protected void read() throws Exception
+	{
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+		{
+			int[] r = range(zoom);
+			for (int x = r[0]; x <= r[2]; x++)
+			{
+				for (int y = r[1]; y <= r[3]; y++)
+				{
+					emit(new TileRecord(zoom, x, y, null));
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void transform(TileRecord tile)
+	{
+		// Each tile has its own generator, the result doesn't depend on
+		// the thread that makes it
+		Random r = new Random(mix(seed ^ TileBundle.key(tile.zoom, tile.x, tile.y)));
+
+		if (r.nextDouble() < duplicates)
+		{
+			// Cubed so the first images are by far the most used
+			double u = r.nextDouble();
+			tile.image = common[(int) (u * u * u * COMMON_IMAGES)];
+		}
+		else
+		{
+			double size = Math.exp(mu + sigma * r.nextGaussian());
+			tile.image = png(r, (int) Math.round(size / ROW_SIZE));
+		}
+
+		if (dedup) tile.hash = TileHash.hash(tile.image);
+	}
+
+	@Override
+	protected void write(List<TileRecord> batch) throws Exception
+	{
+		for (TileRecord tile : batch)
+		{
+			insertTile.setInt(1, tile.x);
+			insertTile.setInt(2, tile.y);
+			insertTile.setInt(3, TileDB.z(tile.zoom));
+			if (dedup)
+			{
+				insertImage.setString(1, tile.hash);
+				insertImage.setBytes(2, tile.image);
+				insertImage.addBatch();
+				insertTile.setString(4, tile.hash);
+			}
+			else
+			{
+				insertTile.setBytes(4, tile.image);
+			}
+			insertTile.addBatch();
+		}
+
+		if (dedup) insertImage.executeBatch();
+		insertTile.executeBatch();
+		target.commit();
+	}
+
+	// SplitMix64 finalizer. Random keeps only the low 48 bits of its seed,
+	// the zoom is in the top bits of the key: every bit has to reach them
+	static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// A 256x256 RGB PNG of one color with a grid, noiseRows rows of it are
+	// random and make its size
+	public static byte[] png(Random r, int noiseRows)
+	{
+		noiseRows = clamp(noiseRows, 256);
+		int red = r.nextInt(256), green = r.nextInt(256), blue = r.nextInt(256);
+
+		// Each row starts with its filter type, 0 = none
+		byte[] raw = new byte[256 * ROW_SIZE];
+		for (int row = 0, i = 0; row < 256; row++)
+		{
+			raw[i++] = 0;
+			boolean noise = row < noiseRows;
+			for (int col = 0; col < 256; col++)
+			{
+				boolean grid = row % 64 == 0 || col % 64 == 0;
+				if (noise)
+				{
+					int rgb = r.nextInt();
+					raw[i++] = (byte) rgb;
+					raw[i++] = (byte) (rgb >> 8);
+					raw[i++] = (byte) (rgb >> 16);
+				}
+				else
+				{
+					raw[i++] = (byte) (grid ? 0 : red);
+					raw[i++] = (byte) (grid ? 0 : green);
+					raw[i++] = (byte) (grid ? 0 : blue);
+				}
+			}
+		}
+
+		return PngWriter.rgb(256, 256, raw, Deflater.BEST_SPEED);
+	}
+}
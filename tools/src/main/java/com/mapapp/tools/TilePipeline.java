@@ -0,0 +1,185 @@
+package com.mapapp.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies tiles from a store to another in three stages running at once:
+ * one reader, several transform threads and one writer.
+ * Tiles travel in batches through bounded queues, so at most a few batches
+ * are in memory whatever the size of the source, and each written batch is
+ * one transaction.
+ */
+public abstract class TilePipeline
+{
+	public final static int BATCH_SIZE = 500;
+
+	// Marks the end of the stream in a queue
+	private final static List<TileRecord> END = new ArrayList<TileRecord>();
+
+	private final int threads;
+
+	private final BlockingQueue<List<TileRecord>> toTransform;
+	private final BlockingQueue<List<TileRecord>> toWrite;
+
+	// First error of any stage, stops the others
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	private long count;
+
+	protected TilePipeline(int threads)
+	{
+		this.threads = threads;
+		toTransform = new ArrayBlockingQueue<List<TileRecord>>(threads * 2);
+		toWrite = new ArrayBlockingQueue<List<TileRecord>>(threads * 2);
+	}
+
+	// Reads the whole source, calling emit for every tile
+	protected abstract void read() throws Exception;
+
+	// Converts a tile for the target, runs on several threads
+	protected abstract void transform(TileRecord tile) throws Exception;
+
+	// Writes a batch in a single transaction
+	protected abstract void write(List<TileRecord> batch) throws Exception;
+
+	private List<TileRecord> batch = new ArrayList<TileRecord>(BATCH_SIZE);
+
+	// Called by read(), on the reader thread
+	protected void emit(TileRecord tile) throws Exception
+	{
+		batch.add(tile);
+		if (batch.size() == BATCH_SIZE)
+		{
+			put(toTransform, batch);
+			batch = new ArrayList<TileRecord>(BATCH_SIZE);
+		}
+	}
+
+	// Runs the three stages and returns the number of tiles written
+	public long run() throws Exception
+	{
+		Thread reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					read();
+					if (!batch.isEmpty()) put(toTransform, batch);
+				}
+				catch (Exception e)
+				{
+					failure.compareAndSet(null, e);
+				}
+				finally
+				{
+					for (int i = 0; i < threads; i++)
+						putEnd(toTransform);
+				}
+			}
+		}, "pipeline-reader");
+
+		Thread[] transformers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			transformers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Keeps draining after a failure so the reader never blocks
+					for (List<TileRecord> b = take(toTransform); b != END; b = take(toTransform))
+					{
+						if (failure.get() != null) continue;
+						try
+						{
+							for (TileRecord tile : b)
+								transform(tile);
+							put(toWrite, b);
+						}
+						catch (Exception e)
+						{
+							failure.compareAndSet(null, e);
+						}
+					}
+					putEnd(toWrite);
+				}
+			}, "pipeline-transform-" + i);
+		}
+
+		reader.start();
+		for (Thread t : transformers)
+			t.start();
+
+		// The writer is the calling thread, it stops once every transformer ended
+		int ended = 0;
+		while (ended < threads)
+		{
+			List<TileRecord> b = take(toWrite);
+			if (b == END) ended++;
+			else if (failure.get() == null)
+			{
+				try
+				{
+					write(b);
+					count += b.size();
+				}
+				catch (Exception e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}
+		}
+
+		reader.join();
+		for (Thread t : transformers)
+			t.join();
+
+		if (failure.get() != null) throw failure.get();
+		return count;
+	}
+
+	// Blocking put giving up when another stage failed
+	private void put(BlockingQueue<List<TileRecord>> queue, List<TileRecord> b) throws Exception
+	{
+		while (!queue.offer(b, 100, TimeUnit.MILLISECONDS))
+		{
+			if (failure.get() != null) throw new InterruptedException("pipeline stopped");
+		}
+	}
+
+	// End markers must always get through, the consumers are still running
+	private void putEnd(BlockingQueue<List<TileRecord>> queue)
+	{
+		try
+		{
+			queue.put(END);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private List<TileRecord> take(BlockingQueue<List<TileRecord>> queue)
+	{
+		while (true)
+		{
+			try
+			{
+				return queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				// Stages only stop on the end marker
+				failure.compareAndSet(null, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.mapapp.tools;
+
+/**
+ * A tile moving between stores, always in XYZ order with the real zoom level,
+ * each store converts from and to its own scheme.
+ */
+public class TileRecord
+{
+	public int zoom, x, y;
+	public byte[] image;
+
+	// Content hash, filled in when the target deduplicates images
+	public String hash;
+
+	public TileRecord(int zoom, int x, int y, byte[] image)
+	{
+		this.zoom = zoom;
+		this.x = x;
+		this.y = y;
+		this.image = image;
+	}
+
+	// Longitude of the left edge of column x
+	public static double tileLon(int zoom, int x)
+	{
+		return x / (double) (1 << zoom) * 360.0 - 180.0;
+	}
+
+	// Latitude of the top edge of row y (XYZ order)
+	public static double tileLat(int zoom, int y)
+	{
+		double n = Math.PI - 2.0 * Math.PI * y / (1 << zoom);
+		return Math.toDegrees(Math.atan(Math.sinh(n)));
+	}
+
+	// Flips y between XYZ and TMS (MBTiles) order, works both ways
+	public static int flipY(int zoom, int y)
+	{
+		return (1 << zoom) - 1 - y;
+	}
+}
@@ -0,0 +1,161 @@
+package com.mapapp.tools;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds undecodable or truncated images.
+ * One thread reads the blobs and hands them to a pool of checkers through a
+ * bounded queue, so memory use doesn't depend on the database size.
+ */
+public class TileScanner
+{
+	// A blob to check, identified by the tiles rowid or the images hash
+	static class Item
+	{
+		final long rowid;
+		final String hash;
+		final byte[] image;
+
+		Item(long rowid, String hash, byte[] image)
+		{
+			this.rowid = rowid;
+			this.hash = hash;
+			this.image = image;
+		}
+	}
+
+	// Tells the checkers there is nothing left
+	private final static Item END = new Item(-1, null, null);
+
+	private final Connection conn;
+	private final int threads;
+
+	// Bad tiles rows (old layout) and bad shared images
+	final List<Long> badRows = Collections.synchronizedList(new ArrayList<Long>());
+	final List<String> badHashes = Collections.synchronizedList(new ArrayList<String>());
+
+	long scanned;
+
+	public TileScanner(Connection conn, int threads)
+	{
+		this.conn = conn;
+		this.threads = threads;
+	}
+
+	public void scan() throws SQLException, InterruptedException
+	{
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(threads * 16);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		for (int i = 0; i < threads; i++)
+		{
+			pool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (Item item = queue.take(); item != END; item = queue.take())
+						{
+							if (ImageCheck.isValid(item.image)) continue;
+
+							if (item.hash != null) badHashes.add(item.hash);
+							else badRows.add(item.rowid);
+						}
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		try (Statement st = conn.createStatement())
+		{
+			try (ResultSet rs = st.executeQuery("SELECT rowid, image FROM tiles WHERE image IS NOT NULL"))
+			{
+				while (rs.next())
+				{
+					queue.put(new Item(rs.getLong(1), null, rs.getBytes(2)));
+					scanned++;
+				}
+			}
+			try (ResultSet rs = st.executeQuery("SELECT hash, image FROM images"))
+			{
+				while (rs.next())
+				{
+					queue.put(new Item(-1, rs.getString(1), rs.getBytes(2)));
+					scanned++;
+				}
+			}
+		}
+		finally
+		{
+			for (int i = 0; i < threads; i++)
+				queue.put(END);
+
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+	}
+
+	// Removes the bad images and the tiles showing them, they will be
+	// downloaded again by the app. Returns the number of deleted tiles.
+	public int deleteBad() throws SQLException
+	{
+		int deleted = 0;
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+
+		try (PreparedStatement row = conn.prepareStatement("DELETE FROM tiles WHERE rowid = ?");
+				PreparedStatement tiles = conn.prepareStatement("DELETE FROM tiles WHERE hash = ?");
+				PreparedStatement image = conn.prepareStatement("DELETE FROM images WHERE hash = ?"))
+		{
+			for (long rowid : badRows)
+			{
+				row.setLong(1, rowid);
+				deleted += row.executeUpdate();
+			}
+			for (String hash : badHashes)
+			{
+				tiles.setString(1, hash);
+				deleted += tiles.executeUpdate();
+				image.setString(1, hash);
+				image.executeUpdate();
+			}
+			conn.commit();
+		}
+		catch (SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		finally
+		{
+			conn.setAutoCommit(autoCommit);
+		}
+
+		return deleted;
+	}
+
+	public void printReport(PrintStream out)
+	{
+		out.printf("scanned %d images with %d threads: %d bad tile rows, %d bad shared images%n", scanned, threads, badRows.size(),
+				badHashes.size());
+	}
+}
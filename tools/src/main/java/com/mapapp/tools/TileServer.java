@@ -0,0 +1,517 @@
+package com.mapapp.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mapapp.core.TileBundle;
+import com.mapapp.core.TileHash;
+
+/**
+ * Read only HTTP server of a sqlitedb or a tile bundle, tiles are at
+ * /{z}/{x}/{y}.png (any extension, the type comes from the image itself).
+ *
+ * One thread serves everything through a selector. Bundle images go to the
+ * socket with FileChannel.transferTo, from the page cache without being
+ * copied through the heap. The ETag is the content hash of the image, the
+ * same in every pack version, so clients revalidate with a 304.
+ * At most maxConnections are open: the server stops accepting while full,
+ * connections idle for IDLE_TIMEOUT are closed.
+ */
+public class TileServer implements AutoCloseable
+{
+	public final static long IDLE_TIMEOUT = 30 * 1000;
+
+	// Longest request line and headers accepted
+	final static int MAX_REQUEST_SIZE = 8192;
+
+	final static Pattern TILE_PATH = Pattern.compile("/(\\d{1,2})/(\\d{1,9})/(\\d{1,9})(\\.\\w+)?");
+
+	// A found tile, its image is either in body or at position in file
+	static class Tile
+	{
+		String etag, type;
+		ByteBuffer body;
+		FileChannel file;
+		long position, length;
+	}
+
+	// Where the tiles come from, only used by the server thread
+	interface Source extends AutoCloseable
+	{
+		// Returns null for a missing tile
+		Tile find(int zoom, int x, int y) throws IOException, SQLException;
+
+		@Override
+		void close() throws IOException, SQLException;
+	}
+
+	static class Client
+	{
+		final SocketChannel channel;
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		long lastActive;
+
+		// The response being sent, null between requests
+		ByteBuffer header, body;
+		FileChannel file;
+		long position, remaining;
+		boolean keepAlive;
+
+		Client(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	private final Source source;
+	private final int maxConnections;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final SelectionKey serverKey;
+	private final PrintStream log;
+
+	private int connections;
+	private long requests;
+	private volatile boolean running = true;
+
+	public TileServer(Source source, int port, int maxConnections, PrintStream log) throws IOException
+	{
+		this.source = source;
+		this.maxConnections = maxConnections;
+		this.log = log;
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), maxConnections);
+		server.configureBlocking(false);
+		serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	// A bundle or a sqlitedb depending on what the file is
+	public static Source openSource(String path) throws IOException, SQLException
+	{
+		return TileBundleReader.isBundle(path) ? new BundleSource(new TileBundleReader(path)) : new DatabaseSource(TileDB.openReadOnly(path));
+	}
+
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	// Serves until stop() is called
+	public void run() throws IOException
+	{
+		while (running)
+		{
+			selector.select(1000);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try
+				{
+					if (key == serverKey)
+					{
+						accept();
+						continue;
+					}
+
+					Client c = (Client) key.attachment();
+					if (key.isValid() && key.isReadable()) read(c, key);
+					if (key.isValid() && key.isWritable()) write(c, key);
+				}
+				catch (IOException e)
+				{
+					// The client went away
+					close(key);
+				}
+			}
+
+			closeIdle();
+		}
+	}
+
+	public void stop()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	public long getRequests()
+	{
+		return requests;
+	}
+
+	void accept() throws IOException
+	{
+		while (connections < maxConnections)
+		{
+			SocketChannel channel = server.accept();
+			if (channel == null) return;
+
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+			Client c = new Client(channel);
+			c.lastActive = System.currentTimeMillis();
+			channel.register(selector, SelectionKey.OP_READ, c);
+			connections++;
+		}
+
+		// Full, pending connections wait in the backlog
+		serverKey.interestOps(0);
+	}
+
+	void close(SelectionKey key)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+			// Closed anyway
+		}
+
+		if (--connections < maxConnections) serverKey.interestOps(SelectionKey.OP_ACCEPT);
+	}
+
+	void closeIdle()
+	{
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys())
+		{
+			if (key == serverKey || !key.isValid()) continue;
+
+			Client c = (Client) key.attachment();
+			if (now - c.lastActive > IDLE_TIMEOUT) close(key);
+		}
+	}
+
+	void read(Client c, SelectionKey key) throws IOException
+	{
+		if (c.channel.read(c.request) < 0)
+		{
+			close(key);
+			return;
+		}
+		c.lastActive = System.currentTimeMillis();
+
+		if (nextRequest(c)) write(c, key);
+	}
+
+	// Prepares the response to the request at the start of the buffer if it
+	// is complete, requests are answered one at a time
+	boolean nextRequest(Client c) throws IOException
+	{
+		int end = headerEnd(c.request);
+		if (end < 0)
+		{
+			if (c.request.hasRemaining()) return false;
+
+			respond(c, 431, "Request too large", false);
+			return true;
+		}
+
+		String text = new String(c.request.array(), 0, end, StandardCharsets.ISO_8859_1);
+
+		// Keep what the client already sent after this request
+		c.request.flip();
+		c.request.position(end);
+		c.request.compact();
+
+		handle(c, text);
+		requests++;
+		return true;
+	}
+
+	// Index just after the blank line ending the headers, or -1
+	static int headerEnd(ByteBuffer request)
+	{
+		byte[] b = request.array();
+		for (int i = 3; i < request.position(); i++)
+		{
+			if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') return i + 1;
+		}
+		return -1;
+	}
+
+	void handle(Client c, String text)
+	{
+		String[] lines = text.split("\r\n");
+		String[] parts = lines[0].split(" ");
+		if (parts.length != 3)
+		{
+			respond(c, 400, "Bad request", false);
+			return;
+		}
+
+		HashMap<String, String> headers = new HashMap<String, String>();
+		for (int i = 1; i < lines.length; i++)
+		{
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+		}
+
+		// HTTP/1.1 keeps the connection unless told otherwise, 1.0 the opposite
+		String connection = headers.containsKey("connection") ? headers.get("connection").toLowerCase() : "";
+		boolean keepAlive = parts[2].equals("HTTP/1.1") ? !connection.equals("close") : connection.equals("keep-alive");
+
+		boolean head = parts[0].equals("HEAD");
+		if (!head && !parts[0].equals("GET"))
+		{
+			respond(c, 405, "Method not allowed", keepAlive);
+			return;
+		}
+
+		Matcher m = TILE_PATH.matcher(parts[1]);
+		if (!m.matches())
+		{
+			respond(c, 404, "Not found", keepAlive);
+			return;
+		}
+
+		// Tiles outside the map have no key, they can't be in the source
+		int zoom = Integer.parseInt(m.group(1)), x = Integer.parseInt(m.group(2)), y = Integer.parseInt(m.group(3));
+		if (zoom > TileBundle.MAX_ZOOM || x >= 1 << zoom || y >= 1 << zoom)
+		{
+			respond(c, 404, "Not found", keepAlive);
+			return;
+		}
+
+		Tile tile;
+		try
+		{
+			tile = source.find(zoom, x, y);
+		}
+		catch (IOException | SQLException | RuntimeException e)
+		{
+			log.println("Reading " + parts[1] + " failed: " + e);
+			respond(c, 500, "Internal error", false);
+			return;
+		}
+
+		if (tile == null)
+		{
+			respond(c, 404, "Not found", keepAlive);
+			return;
+		}
+
+		String etag = "\"" + tile.etag + "\"";
+		if (etag.equals(headers.get("if-none-match")))
+		{
+			c.header = header(304, "Not Modified", null, -1, etag, keepAlive);
+			c.keepAlive = keepAlive;
+			return;
+		}
+
+		c.header = header(200, "OK", tile.type, tile.body != null ? tile.body.remaining() : tile.length, etag, keepAlive);
+		c.keepAlive = keepAlive;
+		if (head) return;
+
+		c.body = tile.body;
+		c.file = tile.file;
+		c.position = tile.position;
+		c.remaining = tile.length;
+	}
+
+	void respond(Client c, int status, String reason, boolean keepAlive)
+	{
+		byte[] text = (reason + "\n").getBytes(StandardCharsets.ISO_8859_1);
+		c.header = header(status, reason, "text/plain", text.length, null, keepAlive);
+		c.body = ByteBuffer.wrap(text);
+		c.keepAlive = keepAlive;
+	}
+
+	static ByteBuffer header(int status, String reason, String type, long length, String etag, boolean keepAlive)
+	{
+		StringBuilder h = new StringBuilder(256);
+		h.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		if (type != null) h.append("Content-Type: ").append(type).append("\r\n");
+		if (length >= 0) h.append("Content-Length: ").append(length).append("\r\n");
+		if (etag != null) h.append("ETag: ").append(etag).append("\r\nCache-Control: public, max-age=86400\r\n");
+		h.append("Access-Control-Allow-Origin: *\r\n");
+		h.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+		h.append("\r\n");
+		return ByteBuffer.wrap(h.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	// Sends as much of the response as the socket takes, what's left is
+	// sent when it's writable again
+	void write(Client c, SelectionKey key) throws IOException
+	{
+		while (c.header != null)
+		{
+			if (c.body != null) c.channel.write(new ByteBuffer[] { c.header, c.body });
+			else c.channel.write(c.header);
+
+			if (c.header.hasRemaining() || c.body != null && c.body.hasRemaining())
+			{
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			while (c.file != null && c.remaining > 0)
+			{
+				long n = c.file.transferTo(c.position, c.remaining, c.channel);
+				if (n == 0)
+				{
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				c.position += n;
+				c.remaining -= n;
+			}
+
+			c.lastActive = System.currentTimeMillis();
+			c.header = null;
+			c.body = null;
+			c.file = null;
+
+			if (!c.keepAlive)
+			{
+				close(key);
+				return;
+			}
+
+			// A pipelined request may be waiting already
+			nextRequest(c);
+		}
+
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void close() throws IOException, SQLException
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			key.channel().close();
+		}
+		selector.close();
+		source.close();
+	}
+
+	static class BundleSource implements Source
+	{
+		// ETags kept at most, a few hundred bytes each
+		final static int MAX_META = 200000;
+
+		private final TileBundleReader bundle;
+
+		// ETag and type of the images served last, by position, identical
+		// tiles share the image so it's read and hashed once. The least
+		// recently served go first, a bundle of the planet has millions
+		private final LinkedHashMap<Long, String[]> meta = new LinkedHashMap<Long, String[]>(1024, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest)
+			{
+				return size() > MAX_META;
+			}
+		};
+
+		BundleSource(TileBundleReader bundle)
+		{
+			this.bundle = bundle;
+		}
+
+		@Override
+		public Tile find(int zoom, int x, int y) throws IOException
+		{
+			int entry = bundle.find(zoom, x, y);
+			if (entry < 0) return null;
+
+			Tile t = new Tile();
+			t.file = bundle.getChannel();
+			t.position = bundle.position(entry);
+			t.length = bundle.length(entry);
+
+			String[] m = meta.get(t.position);
+			if (m == null)
+			{
+				ByteBuffer image = ByteBuffer.allocate((int) t.length);
+				while (image.hasRemaining())
+				{
+					if (t.file.read(image, t.position + image.position()) < 0) throw new IOException("Truncated bundle");
+				}
+				m = new String[] { TileHash.hash(image.array()), ImageCheck.contentType(image.array()) };
+				meta.put(t.position, m);
+			}
+			t.etag = m[0];
+			t.type = m[1];
+			return t;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			bundle.close();
+		}
+	}
+
+	static class DatabaseSource implements Source
+	{
+		private final Connection conn;
+		private final PreparedStatement query;
+
+		DatabaseSource(Connection conn) throws SQLException
+		{
+			this.conn = conn;
+			query = conn.prepareStatement("SELECT t.hash, " + TileDB.IMAGE_COLUMN + " FROM " + TileDB.TILES_JOIN
+					+ " WHERE t.x = ? AND t.y = ? AND t.z = ? ORDER BY t.rowid DESC LIMIT 1");
+		}
+
+		@Override
+		public Tile find(int zoom, int x, int y) throws SQLException
+		{
+			query.setInt(1, x);
+			query.setInt(2, y);
+			query.setInt(3, TileDB.z(zoom));
+			try (ResultSet rs = query.executeQuery())
+			{
+				if (!rs.next()) return null;
+
+				byte[] image = rs.getBytes(2);
+				if (image == null) return null;
+
+				Tile t = new Tile();
+				t.etag = rs.getString(1) != null ? rs.getString(1) : TileHash.hash(image);
+				t.type = ImageCheck.contentType(image);
+				t.body = ByteBuffer.wrap(image);
+				t.length = image.length;
+				return t;
+			}
+		}
+
+		@Override
+		public void close() throws SQLException
+		{
+			query.close();
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.mapapp.tools;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Per zoom tile counts, extent, coverage and sizes of a tile database.
+ */
+public class TileStats
+{
+	public static void print(Connection conn, PrintStream out) throws SQLException
+	{
+		String query = "SELECT t.z, COUNT(*), MIN(t.x), MAX(t.x), MIN(t.y), MAX(t.y), SUM(LENGTH(" + TileDB.IMAGE_COLUMN + ")) FROM "
+				+ TileDB.TILES_JOIN + " GROUP BY t.z ORDER BY t.z DESC";
+
+		out.printf("%5s %10s %19s %19s %10s %12s %8s%n", "zoom", "tiles", "x range", "y range", "coverage", "bytes", "avg");
+
+		long totalTiles = 0, totalBytes = 0;
+		try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(query))
+		{
+			while (rs.next())
+			{
+				int zoom = TileDB.zoom(rs.getInt(1));
+				long count = rs.getLong(2);
+				long bytes = rs.getLong(7);
+
+				// Share of the whole world available at this zoom
+				double coverage = 100.0 * count / Math.pow(4, zoom);
+
+				out.printf("%5d %10d %9d-%-9d %9d-%-9d %9.4f%% %12d %8d%n", zoom, count, rs.getInt(3), rs.getInt(4), rs.getInt(5),
+						rs.getInt(6), coverage, bytes, bytes / Math.max(count, 1));
+
+				totalTiles += count;
+				totalBytes += bytes;
+			}
+		}
+
+		long images = TileDB.queryLong(conn, "SELECT COUNT(*) FROM images");
+		long legacy = TileDB.queryLong(conn, "SELECT COUNT(*) FROM tiles WHERE image IS NOT NULL");
+
+		out.printf("total %10d tiles, %d bytes of images as seen by the map%n", totalTiles, totalBytes);
+		out.printf("stored %d shared images, %d tiles with their own image%n", images, legacy);
+	}
+}
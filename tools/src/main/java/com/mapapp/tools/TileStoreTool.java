@@ -0,0 +1,236 @@
+package com.mapapp.tools;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+
+/**
+ * Command line maintenance of sqlitedb tile stores.
+ *
+ * Usage:
+ *   TileStoreTool stats    <db>
+ *   TileStoreTool scan     <db> [--delete] [--threads N]
+ *   TileStoreTool compact  <db>
+ *   TileStoreTool optimize <db> <out> [--threads N]
+ *   TileStoreTool import-mbtiles <mbtiles> <db> [--threads N]
+ *   TileStoreTool export-mbtiles <db> <mbtiles> [--threads N]
+ *   TileStoreTool export-bundle  <db> <bundle>
+ *   TileStoreTool pyramid  <db> [--min-zoom N] [--threads N]
+ *   TileStoreTool slice    <image> <db> --bounds west,north,east,south
+ *                          [--min-zoom N] [--max-zoom N] [--threads N]
+ *   TileStoreTool delta    <old db> <new db> <delta>
+ *   TileStoreTool apply-delta <db> <delta>
+ *   TileStoreTool serve    <db or bundle> [--port N] [--max-connections N]
+ *   TileStoreTool generate <db> [--bounds west,north,east,south] [--min-zoom N]
+ *                          [--max-zoom N] [--size-median BYTES] [--size-p99 BYTES]
+ *                          [--duplicates RATIO] [--seed N] [--dedup] [--threads N]
+ *
+ * optimize leaves the source untouched, it works on a copy written to out:
+ * bad images are deleted, the copy is compacted and vacuumed.
+ */
+public class TileStoreTool
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			usage();
+			return;
+		}
+
+		String command = args[0];
+		String db = args[1];
+		boolean delete = false, dedup = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int minZoom = 0, maxZoom = -1;
+		int port = 8080, maxConnections = 256;
+		int sizeMedian = 12000, sizeP99 = 60000;
+		double duplicates = 0.3;
+		long seed = 1;
+		double[] bounds = null;
+		String out = null, newer = null;
+
+		for (int i = 2; i < args.length; i++)
+		{
+			if (args[i].equals("--delete")) delete = true;
+			else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--min-zoom")) minZoom = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--max-zoom")) maxZoom = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--max-connections")) maxConnections = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--size-median")) sizeMedian = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--size-p99")) sizeP99 = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--duplicates")) duplicates = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--dedup")) dedup = true;
+			else if (args[i].equals("--bounds"))
+			{
+				String[] b = args[++i].split(",");
+				bounds = new double[] { Double.parseDouble(b[0]), Double.parseDouble(b[1]), Double.parseDouble(b[2]), Double.parseDouble(b[3]) };
+			}
+			else
+			{
+				// Of two paths the first one is the newer db of delta
+				newer = out;
+				out = args[i];
+			}
+		}
+
+		// The only command that creates its db
+		if (command.equals("generate"))
+		{
+			// The whole world up to zoom 8 is about 87000 tiles
+			if (bounds == null) bounds = new double[] { -180, 85.0511, 180, -85.0511 };
+			if (maxZoom < 0) maxZoom = 8;
+
+			boolean created = TileDB.isNew(db);
+			try (Connection conn = TileDB.open(db))
+			{
+				if (created) TileDB.bulkMode(conn);
+				TileGenerator generator = new TileGenerator(conn, bounds[0], bounds[1], bounds[2], bounds[3], minZoom, maxZoom, sizeMedian,
+						sizeP99, duplicates, dedup, seed, threads);
+				System.out.println("generating " + generator.count() + " tiles");
+				long start = System.currentTimeMillis();
+				long count = generator.run();
+				System.out.printf("%d tiles written to %s in %d ms%n", count, db, System.currentTimeMillis() - start);
+			}
+			return;
+		}
+
+		if (!new File(db).isFile())
+		{
+			System.err.println("No such database: " + db);
+			System.exit(1);
+		}
+
+		if (command.equals("import-mbtiles") || command.equals("export-mbtiles"))
+		{
+			if (out == null)
+			{
+				usage();
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			long count = command.equals("import-mbtiles") ? MBTilesImporter.run(db, out, threads) : MBTilesExporter.run(db, out, threads);
+			System.out.printf("%d tiles written to %s in %d ms%n", count, out, System.currentTimeMillis() - start);
+			return;
+		}
+
+		if (command.equals("delta") || command.equals("apply-delta"))
+		{
+			if (out == null || command.equals("delta") && newer == null)
+			{
+				usage();
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			TileDelta delta = command.equals("delta") ? TileDelta.write(db, newer, out) : TileDelta.apply(db, out);
+			System.out.printf("%d tiles changed, %d deleted, %d new images (%d bytes) in %d ms%n", delta.tiles, delta.deleted, delta.images,
+					delta.imageBytes, System.currentTimeMillis() - start);
+			return;
+		}
+
+		if (command.equals("serve"))
+		{
+			try (TileServer server = new TileServer(TileServer.openSource(db), port, maxConnections, System.err))
+			{
+				System.out.println("Serving " + db + " on port " + server.getPort());
+				server.run();
+			}
+			return;
+		}
+
+		if (command.equals("slice"))
+		{
+			if (out == null || bounds == null)
+			{
+				usage();
+				return;
+			}
+
+			try (Connection conn = TileDB.open(out))
+			{
+				RasterSlicer slicer = new RasterSlicer(new File(db), bounds[0], bounds[1], bounds[2], bounds[3], conn, threads, System.out);
+				slicer.run(minZoom, maxZoom);
+			}
+			return;
+		}
+
+		if (command.equals("optimize"))
+		{
+			if (out == null)
+			{
+				usage();
+				return;
+			}
+
+			Files.copy(new File(db).toPath(), new File(out).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			db = out;
+		}
+
+		// Commands that only read leave the file as it is
+		boolean readOnly = command.equals("stats") || command.equals("export-bundle") || command.equals("scan") && !delete;
+
+		try (Connection conn = readOnly ? TileDB.openReadOnly(db) : TileDB.open(db))
+		{
+			if (command.equals("stats"))
+			{
+				TileStats.print(conn, System.out);
+			}
+			else if (command.equals("scan") || command.equals("optimize"))
+			{
+				TileScanner scanner = new TileScanner(conn, threads);
+				scanner.scan();
+				scanner.printReport(System.out);
+
+				if (delete || command.equals("optimize"))
+				{
+					System.out.println("deleted " + scanner.deleteBad() + " tiles");
+				}
+
+				if (command.equals("optimize"))
+				{
+					new TileCompactor(conn, System.out).compact();
+					TileStats.print(conn, System.out);
+				}
+			}
+			else if (command.equals("compact"))
+			{
+				new TileCompactor(conn, System.out).compact();
+			}
+			else if (command.equals("pyramid"))
+			{
+				new PyramidBuilder(conn, threads, System.out).build(minZoom);
+			}
+			else if (command.equals("export-bundle") && out != null)
+			{
+				System.out.println(TileBundleWriter.write(conn, out) + " tiles written to " + out);
+			}
+			else
+			{
+				usage();
+			}
+		}
+	}
+
+	static void usage()
+	{
+		System.err.println("usage: TileStoreTool stats <db>");
+		System.err.println("       TileStoreTool scan <db> [--delete] [--threads N]");
+		System.err.println("       TileStoreTool compact <db>");
+		System.err.println("       TileStoreTool optimize <db> <out> [--threads N]");
+		System.err.println("       TileStoreTool import-mbtiles <mbtiles> <db> [--threads N]");
+		System.err.println("       TileStoreTool export-mbtiles <db> <mbtiles> [--threads N]");
+		System.err.println("       TileStoreTool export-bundle <db> <bundle>");
+		System.err.println("       TileStoreTool pyramid <db> [--min-zoom N] [--threads N]");
+		System.err.println("       TileStoreTool slice <image> <db> --bounds west,north,east,south [--min-zoom N] [--max-zoom N] [--threads N]");
+		System.err.println("       TileStoreTool delta <old db> <new db> <delta>");
+		System.err.println("       TileStoreTool apply-delta <db> <delta>");
+		System.err.println("       TileStoreTool serve <db or bundle> [--port N] [--max-connections N]");
+		System.err.println("       TileStoreTool generate <db> [--bounds west,north,east,south] [--min-zoom N] [--max-zoom N]");
+		System.err.println("                              [--size-median BYTES] [--size-p99 BYTES] [--duplicates RATIO] [--seed N] [--dedup] [--threads N]");
+	}
+}